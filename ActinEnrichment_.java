@@ -1,28 +1,26 @@
-import java.awt.Point;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.swing.JFileChooser;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.WindowManager;
+import ij.ImageStack;
+import ij.Macro;
 import ij.gui.GenericDialog;
-import ij.gui.Roi;
+import ij.macro.Interpreter;
+import ij.measure.Calibration;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import ij.plugin.frame.RoiManager;
+import ij.process.ShortProcessor;
 
 
 /**
@@ -31,20 +29,24 @@ import ij.plugin.frame.RoiManager;
  */
 public class ActinEnrichment_ implements ExtendedPlugInFilter {
 
-	ImagePlus imp;
-	ImagePlus impThresh;
+	WorkerPool<Segmenter> segmenters = new WorkerPool<Segmenter>(() -> new Segmenter(this.doWatershed)); //makes the binary masks of the actin frames, one per frame segmented at the same time
+	WorkerPool<ComponentLabeler> labelers = new WorkerPool<ComponentLabeler>(ComponentLabeler::new); //finds the particles of the binary masks, one per frame segmented at the same time
+	MaskStore masks; //the count masks of every frame, background pixels are 0
 	ImagePlus impActin;
+	StackLoader stacks; //decodes the actin and ABP stacks once for all the stages
 	ImagePlus impABP;
-	Roi[] allRois;
-	Roi[] rois;
+	RoiStore roiStore; //the rois within the image bounds with their centroids and areas, by frame
 	double[] totCountValABP;
+	WorkerPool<BackgroundTable> backgroundTables = new WorkerPool<BackgroundTable>(BackgroundTable::new); //the summed-area tables, one set per frame measured at the same time
 
-	ArrayList<Integer> includedFilaments = new ArrayList<Integer>(); //holds the number of consecutive filament appearances for a given filament 
-	ArrayList<Double> averageAreaForFilaments = new ArrayList<Double>(); //holds the average area of a filament that was tracked across multiple frames 
-	ArrayList<Double> avgIntensityForFilaments = new ArrayList<Double>(); //holds the average ratiometric value for each filament that was tracked
-	ArrayList<double[]> ratiosList = new ArrayList<double[]>(); //this will hold the individual values to calculate the standard deviation
-	ArrayList<Double> sdForFilaments = new ArrayList<Double> ();//holds the Standard Deviation values of the avg intensity ratios 
+	FilamentTracker tracker; //links the rois of each frame to the previous frame, nearest first
+	OptimalLinker linker; //or with a minimum cost assignment and gap closing
+	TrackTable tracks = new TrackTable(); //holds the consecutive appearances, average area, average ratio and its SD of every tracked filament
 	int numIncludedFilaments = 0; //total number of filaments that met all the requirements in a movie
+	RunReport report = new RunReport(null, false); //time, allocations and counters of the stages, a new report is started for every movie
+	SegmentationCache segmentationCache; //the segmentations of the movies already processed, null when there is no cache folder
+	SegmentationCache.Reader cachedFrames; //the cached segmentation of the movie being streamed, null when it is segmented
+	SegmentationCache.Writer newCacheEntry; //the segmentation of the movie being streamed, for the cache
 
 	File actinFile = null;
 	File ABPFile = null;
@@ -56,9 +58,29 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 	Double filamentThreshold = null;
 	Double maxFilamentArea = null;
 	boolean doTracking = true;
+	boolean doOptimalLinking = false; //minimum cost linking with gap closing instead of nearest first
+	int gapFrames = 1; //number of frames a filament can be missing and still be linked (optimal linking only)
 	boolean doWatershed = false;
 	boolean doRatiobg = true;
-
+	boolean doBinaryOutput = false; //also writes the results as a binary columnar file
+	boolean doVirtualStacks = false; //reads the frames from disk when needed and keeps the count masks in a memory mapped file
+	boolean doStreaming = false; //segments, tracks and measures one frame at a time
+	boolean doLive = false; //processes the frames while the movie is being acquired
+	int liveTimeout = 30; //seconds without a new frame after which the acquisition is considered finished
+	boolean doParallelFrames = true; //measures the frames of a movie on all cores
+	boolean headless = false; //true when run from macro options or a parameter file, no dialogs or windows are opened
+	boolean doJfrEvents = false; //also records the stages of the run report as Java Flight Recorder events
+
+
+	//the kinds of rows of the tracking output
+	private static final int ROW_FIRST = 0; //first row of the file: filament, frame and number of filaments columns
+	private static final int ROW_FILAMENT_AND_FRAME = 1; //first row of a filament and of a frame
+	private static final int ROW_FILAMENT = 2; //first row of a filament
+	private static final int ROW_FRAME = 3; //first row of a frame
+	private static final int ROW_PLAIN = 4; //only the measurements
+
+	//time between two checks for new frames in live mode
+	private static final long LIVE_POLL_MS = 100;
 
 	//Arbitrary box size for background
 	//Make sure this is an even number!
@@ -70,35 +92,38 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 	 */
 	public void run(ImageProcessor ip) {
 
-		for(int i = 0; i < 10000; i++) {
-			includedFilaments.add(0);
-		}
-
-		for(int i = 0; i < 10000; i++) {
-			averageAreaForFilaments.add(0.0);
-		}
-
-		for(int i = 0; i < 10000; i++) {
-			avgIntensityForFilaments.add(0.0);
-		}
-
-		for(int i = 0; i < 10000; i++) {
-			sdForFilaments.add(0.0);
-		}
-
-		for(int i = 0; i < 10000; i++) {
-			double[] e = new double[10];
-			ratiosList.add(e);
-		}
 		//This is responsible for processing the images selected from ShowDialog() method
 		if ( particleSizeMin != null && actinFile != null && ABPFile != null && newFileLocation != null) {
-			ParticleSelector(actinFile);     //Will use Analyze Particles to select rois that represent actin filaments   
+			stacks = new StackLoader(actinFile, ABPFile, doVirtualStacks || doStreaming);
+			report = new RunReport(actinFile.getName(), doJfrEvents);
 			try {
-				determineEnrichment(actinFile, ABPFile, rois); //Runs the ratiometric image analysis between the actin & ABP image stacks
-				IJ.showMessage("Colocalization Done!");
+				if(doLive) {
+					processLive(); //follows the files as the acquisition software writes them
+				} else if(doStreaming) {
+					processFrames(stacks); //segments, tracks and measures each frame before reading the next one
+				} else {
+					ParticleSelector(stacks);     //Will label the particles (rois) that represent actin filaments   
+					determineEnrichment(stacks, roiStore); //Runs the ratiometric image analysis between the actin & ABP image stacks
+				}
+				writeReport();
+				if(headless) {
+					IJ.log("Colocalization Done! " + actinFile.getName());
+				} else {
+					IJ.showMessage("Colocalization Done!");
+				}
 			} catch (IOException e) {
-				//Auto-generated catch block
-				e.printStackTrace();
+				//rethrown so a batch counts the movie as failed, and ImageJ shows the exception when it runs the plugin
+				throw new UncheckedIOException(e);
+			} finally {
+				//also when the movie has no rois or fails, so the memory mapped count masks do not stay in the temporary folder
+				stacks.close();
+				backgroundTables.clear();
+				segmenters.clear();
+				labelers.clear();
+				if(masks != null) {
+					masks.close();
+					masks = null;
+				}
 			}
 
 		}
@@ -115,11 +140,18 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 		dialogBox.addChoice("Do tracking?", items, items[0]); // enable tracking of particles
 		dialogBox.addChoice("Do Watershed?", items, items[1]); //for highly dense filaments 
 		dialogBox.addChoice("Ratio of ABP background?", items, items[1]);
+		dialogBox.addChoice("Optimal linking with gap closing?", items, items[1]);
+		dialogBox.addChoice("Binary results file?", items, items[1]);
+		dialogBox.addChoice("Virtual stacks (movies larger than memory)?", items, items[1]);
+		dialogBox.addChoice("Process frame by frame (streaming)?", items, items[1]);
+		dialogBox.addChoice("Live acquisition (follow growing files)?", items, items[1]);
 		dialogBox.addSlider("Size of Background box (Must be even number)", 0, 80, 60);
 		dialogBox.addSlider("Minimum distance for tracking", 0, 50, 25);
 		dialogBox.addSlider("Min number of consecutive appearences", 1, 50, 10);
 		dialogBox.addSlider("Maximum Filament Area:", 50, 1500, 1000); 
 		dialogBox.addSlider("Minimum Particle Size", 50, 1500, 100);
+		dialogBox.addSlider("Frames bridged by gap closing", 0, 10, 1);
+		dialogBox.addSlider("Seconds to wait for new frames (live)", 1, 600, 30);
 
 		dialogBox.showDialog();
 
@@ -148,11 +180,48 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 			doRatiobg = false;
 		}
 
+		String optimalLinking = dialogBox.getNextChoice();
+		if(optimalLinking.equals("YES")) {
+			doOptimalLinking = true;
+		} else if (optimalLinking.equals("NO")) {
+			doOptimalLinking = false;
+		}
+
+		String binaryOutput = dialogBox.getNextChoice();
+		if(binaryOutput.equals("YES")) {
+			doBinaryOutput = true;
+		} else if (binaryOutput.equals("NO")) {
+			doBinaryOutput = false;
+		}
+
+		String virtualStacks = dialogBox.getNextChoice();
+		if(virtualStacks.equals("YES")) {
+			doVirtualStacks = true;
+		} else if (virtualStacks.equals("NO")) {
+			doVirtualStacks = false;
+		}
+
+		String streaming = dialogBox.getNextChoice();
+		if(streaming.equals("YES")) {
+			doStreaming = true;
+		} else if (streaming.equals("NO")) {
+			doStreaming = false;
+		}
+
+		String live = dialogBox.getNextChoice();
+		if(live.equals("YES")) {
+			doLive = true;
+		} else if (live.equals("NO")) {
+			doLive = false;
+		}
+
 		boxDim = dialogBox.getNextNumber();
 		thresholdTracking = dialogBox.getNextNumber();
 		filamentThreshold = dialogBox.getNextNumber();
 		maxFilamentArea = dialogBox.getNextNumber();
 		particleSizeMin = dialogBox.getNextNumber();
+		gapFrames = (int) dialogBox.getNextNumber();
+		liveTimeout = (int) dialogBox.getNextNumber();
 
 	}
 
@@ -165,6 +234,28 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 	public int showDialog(ImagePlus imp, String command,
 			PlugInFilterRunner pfr) {
 
+		//when called from a macro (or headless ImageJ) the files and parameters come from the options string
+		String options = Macro.getOptions();
+		if(options != null) {
+			String parameters = Macro.getValue(options, "parameters", null);
+			if(parameters != null) {
+				try {
+					options = options + " " + readParameterFile(new File(parameters)); //values given in the options win over the file
+				} catch (IOException e) {
+					IJ.log("Could not read the parameter file " + parameters + ": " + e);
+					return DONE;
+				}
+			}
+
+			if(Macro.getValue(options, "input", null) != null) {
+				runBatch(options);
+				return DONE;
+			}
+			headless = true;
+			readOptions(options);
+			return 0;
+		}
+
 		JFileChooser chooser = new JFileChooser();
 
 		chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
@@ -190,7 +281,7 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 		returnVal = chooser.showOpenDialog(null);
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
 			newFileLocation = chooser.getSelectedFile().getAbsolutePath() + "/";
-			System.out.println("This is the path of new file: " + newFileLocation);
+			IJ.log("This is the path of new file: " + newFileLocation);
 		} else if (returnVal == JFileChooser.CANCEL_OPTION) {
 			return DONE;
 		}
@@ -200,132 +291,691 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 		return 0;
 	}
 
+	/**
+	 * This reads the files and parameters from a macro style options string (key=value pairs) instead of the dialogs.
+	 * Missing parameters fall back to the defaults of the parameters dialog.
+	 * @param options The options string, e.g. "actin=[/data/movie1_actin.tif] abp=[/data/movie1_ABP.tif] output=/results box=60"
+	 */
+	void readOptions(String options) {
+		String actin = Macro.getValue(options, "actin", null);
+		String abp = Macro.getValue(options, "abp", null);
+		String output = Macro.getValue(options, "output", null);
+
+		if(actin != null) {
+			actinFile = new File(actin);
+		}
+		if(abp != null) {
+			ABPFile = new File(abp);
+		}
+		if(output != null) {
+			newFileLocation = new File(output).getAbsolutePath() + File.separator;
+		}
+
+		doTracking = Macro.getValue(options, "tracking", "YES").equalsIgnoreCase("YES");
+		doWatershed = Macro.getValue(options, "watershed", "NO").equalsIgnoreCase("YES");
+		doRatiobg = Macro.getValue(options, "ratio_background", "NO").equalsIgnoreCase("YES");
+		doParallelFrames = Macro.getValue(options, "parallel", "YES").equalsIgnoreCase("YES");
+		doOptimalLinking = Macro.getValue(options, "optimal_linking", "NO").equalsIgnoreCase("YES");
+		doBinaryOutput = Macro.getValue(options, "binary", "NO").equalsIgnoreCase("YES");
+		doVirtualStacks = Macro.getValue(options, "virtual", "NO").equalsIgnoreCase("YES");
+		doStreaming = Macro.getValue(options, "streaming", "NO").equalsIgnoreCase("YES");
+		doLive = Macro.getValue(options, "live", "NO").equalsIgnoreCase("YES");
+
+		boxDim = Double.valueOf(Macro.getValue(options, "box", "60"));
+		thresholdTracking = Double.valueOf(Macro.getValue(options, "tracking_distance", "25"));
+		filamentThreshold = Double.valueOf(Macro.getValue(options, "consecutive", "10"));
+		maxFilamentArea = Double.valueOf(Macro.getValue(options, "max_area", "1000"));
+		particleSizeMin = Double.valueOf(Macro.getValue(options, "min_size", "100"));
+		gapFrames = Integer.parseInt(Macro.getValue(options, "gap", "1"));
+		liveTimeout = Integer.parseInt(Macro.getValue(options, "live_timeout", "30"));
+		doJfrEvents = Macro.getValue(options, "jfr", "NO").equalsIgnoreCase("YES");
+
+		String cache = Macro.getValue(options, "cache", null);
+		if(cache != null) {
+			segmentationCache = new SegmentationCache(new File(cache), Long.parseLong(Macro.getValue(options, "cache_size", "2048")) << 20);
+		}
+	}
+
+	/**
+	 * Writes the run report of the movie (parameters, time and allocations of every stage, counters and peak heap)
+	 * to a JSON file next to the csv files
+	 * @throws IOException
+	 */
+	private void writeReport() throws IOException {
+		report.parameter("tracking", doTracking);
+		report.parameter("watershed", doWatershed);
+		report.parameter("ratio_background", doRatiobg);
+		report.parameter("parallel", doParallelFrames);
+		report.parameter("optimal_linking", doOptimalLinking);
+		report.parameter("virtual", doVirtualStacks);
+		report.parameter("streaming", doStreaming);
+		report.parameter("live", doLive);
+		report.parameter("box", boxDim);
+		report.parameter("tracking_distance", thresholdTracking);
+		report.parameter("consecutive", filamentThreshold);
+		report.parameter("max_area", maxFilamentArea);
+		report.parameter("min_size", particleSizeMin);
+		report.parameter("gap", gapFrames);
+		report.parameter("cache", segmentationCache != null);
+		report.write(new File(newFileLocation, actinFile.getName() + "_RunReport.json"));
+	}
+
+	/**
+	 * Processes every actin/ABP stack pair found in a folder without opening any dialogs. Stacks are paired by name:
+	 * for every .tif file whose name contains the actin tag, the file with the actin tag replaced by the ABP tag is its ABP stack
+	 * (e.g. "cell1_actin.tif" and "cell1_ABP.tif").
+	 * @param options The options string; "input" and "output" are the folders, "actin_tag" and "abp_tag" override the default tags,
+	 * "jobs" is the number of movies processed at the same time and the remaining keys are the ones read by readOptions
+	 */
+	static void runBatch(String options) {
+		File input = new File(Macro.getValue(options, "input", "."));
+		String output = Macro.getValue(options, "output", input.getAbsolutePath());
+		String actinTag = Macro.getValue(options, "actin_tag", "actin");
+		String ABPTag = Macro.getValue(options, "abp_tag", "ABP");
+
+		File[] files = input.listFiles();
+		if(files == null) {
+			IJ.log("Not a folder: " + input.getAbsolutePath());
+			return;
+		}
+		Arrays.sort(files);
+
+		Interpreter.batchMode = true; //keeps ImageJ from displaying the intermediate images
+
+		//each movie is its own job, "jobs" of them are processed at the same time
+		MovieScheduler scheduler = new MovieScheduler(Integer.parseInt(Macro.getValue(options, "jobs", "1")));
+		for(File file : files) {
+			String name = file.getName();
+			if(!name.contains(actinTag) || !(name.endsWith(".tif") || name.endsWith(".tiff"))) {
+				continue;
+			}
+
+			File partner = new File(input, name.replace(actinTag, ABPTag));
+			if(partner.equals(file) || !partner.isFile()) {
+				IJ.log("No ABP stack found for " + name + ", skipping");
+				continue;
+			}
+
+			scheduler.submit(MovieScheduler.createJob(options, file, partner, output));
+		}
+		int processed = scheduler.awaitCompletion();
+
+		IJ.log("Processed " + processed + " stack pairs from " + input.getAbsolutePath());
+	}
+
+	/**
+	 * Reads a parameter file with one key=value pair per line (the keys of the macro options, lines starting with # are ignored)
+	 * and turns it into a macro style options string
+	 * @param file The parameter file
+	 * @return The options string
+	 * @throws IOException
+	 */
+	static String readParameterFile(File file) throws IOException {
+		StringBuilder options = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				int equals = line.indexOf('=');
+				if(line.isEmpty() || line.startsWith("#") || equals < 0) {
+					continue;
+				}
+				options.append(line.substring(0, equals).trim()).append("=[").append(line.substring(equals + 1).trim()).append("] ");
+			}
+		} finally {
+			reader.close();
+		}
+		return options.toString();
+	}
+
 	/**
 	 * This method performs the particle selection operations on the image
 	 * passed to it.
 	 * 
-	 * @param file This is the actin file that was selected from the dialog box
+	 * @param stacks The stacks of the movie, the filtering is done on a copy of each actin frame
+	 * @throws IOException If the memory mapped file for the count masks cannot be created
+	 */
+	private void ParticleSelector(StackLoader stacks) throws IOException {
+		RunReport.Probe probe = report.start();
+		ImagePlus raw = stacks.actin();
+		report.stop("open", probe);
+		probe = report.start();
+		int slices = raw.getStackSize();
+		masks = new MaskStore(raw.getWidth(), raw.getHeight(), slices, doVirtualStacks);
+		ImageStack stack = raw.getImageStack();
+		double minSize = minimumParticleSize(raw);
+
+		//a movie that was segmented before with the same parameters is read from the cache instead.
+		//The particles of every frame, indexed by slice like the stack (index 0 is unused)
+		ArrayList<ArrayList<Particle>> frameParticles = new ArrayList<ArrayList<Particle>>(slices + 1);
+		frameParticles.add(null);
+		String cacheKey = null;
+		if(segmentationCache != null) {
+			RunReport.Probe lookup = report.start();
+			cacheKey = segmentationCache.key(actinFile, minSize, doWatershed);
+			report.stop("cache.lookup", lookup);
+		}
+		if(cacheKey == null || !readCachedSegmentation(cacheKey, raw, frameParticles)) {
+			//each frame is filtered, thresholded and labelled on its own, the raw actin pixels stay untouched for the measurements.
+			//The labelling gives the particles and count masks of Analyze Particles (size=min-Infinity show=[Count Masks] exclude),
+			//kept by this instance rather than in an image window and the RoiManager, so no display is needed.
+			//The frames are independent until they are tracked, so they can be segmented at the same time, the ordered
+			//stream keeps them in frame order
+			if(doParallelFrames) {
+				frameParticles.addAll(IntStream.rangeClosed(1, slices).parallel()
+						.mapToObj(slice -> segmentFrame(stack, slice, minSize)).collect(Collectors.toList()));
+			} else {
+				for(int slice = 1; slice <= slices; slice++) {
+					frameParticles.add(segmentFrame(stack, slice, minSize));
+				}
+			}
+
+			if(cacheKey != null) {
+				writeCachedSegmentation(cacheKey, raw, frameParticles);
+			}
+		}
+
+		//merged in frame order, the rois are stored in the same order whether the frames were segmented at the same time or not
+		ArrayList<Particle> particles = new ArrayList<Particle>();
+		for(int slice = 1; slice <= slices; slice++) {
+			particles.addAll(frameParticles.get(slice));
+		}
+
+		//Store the regions of interest in the roi store and save the ROIs for future references
+		roiStore = new RoiStore(slices + 1);
+		addParticles(particles, raw.getWidth(), raw.getHeight());
+		report.elapsed("segmentation", probe);
+	}
+
+	/**
+	 * Reads the particles and count masks of every frame of the movie from the segmentation cache. An entry that cannot be read
+	 * to the end is deleted and counted as a miss, the frames read from it are segmented again.
+	 * @param key The key of the movie and segmentation parameters
+	 * @param raw The raw actin stack
+	 * @param frameParticles The particles of every frame are added to this list, only if the whole entry could be read
+	 * @return True if the movie was read from the cache, false if it has to be segmented
 	 */
-	private void ParticleSelector(File file) {
-		// open the image
-		imp = IJ.openImage(file.getAbsolutePath());
-
-		//preprocessing making the binary mask for analyze particles
-		IJ.run(imp, "Unsharp Mask...", "radius=1 mask=0.60 stack"); 
-		System.out.println("Made it past unsharp mask");
-		IJ.run(imp, "Median...", "radius=2 stack");
-		System.out.println("Made it past median filter");
-		IJ.run(imp, "Subtract Background...", "rolling=50 stack");
-		System.out.println("Made it past bg_subtract");
-		IJ.run(imp, "Make Binary", "method=Moments background=Dark calculate");
-		System.out.println("Made binary mask");
-
-		if(doWatershed) {
-			IJ.run(imp, "Watershed", "stack");
-			System.out.println("Finished Watershed");
+	private boolean readCachedSegmentation(String key, ImagePlus raw, ArrayList<ArrayList<Particle>> frameParticles) {
+		RunReport.Probe probe = report.start();
+		int slices = raw.getStackSize();
+		SegmentationCache.Reader reader = segmentationCache.open(key, raw.getWidth(), raw.getHeight(), slices);
+		if(reader == null) {
+			report.count("cache_misses", 1);
+			return false;
 		}
 
-		IJ.run(imp, "Analyze Particles...", "size=" + particleSizeMin + "-Infinity show=[Count Masks] exclude clear add stack");
+		ArrayList<ArrayList<Particle>> cached = new ArrayList<ArrayList<Particle>>(slices);
+		int particles = 0;
+		try {
+			for(int slice = 1; slice <= slices; slice++) {
+				ArrayList<Particle> frame = new ArrayList<Particle>();
+				masks.set(slice, reader.next(slice, frame));
+				cached.add(frame);
+				particles += frame.size();
+			}
+			reader.close();
+		} catch (IOException e) {
+			IJ.log("Could not read the cached segmentation of " + actinFile.getName() + ", segmenting it again: " + e);
+			reader.discard();
+			report.count("cache_misses", 1);
+			return false;
+		}
+		frameParticles.addAll(cached);
+		report.stop("cache.read", probe);
+		report.count("cache_hits", 1);
+		report.count("frames", slices);
+		report.count("particles", particles);
+		return true;
+	}
 
-		//Get the thresholded image from Analyze Particles for the correct background subtraction 
-		impThresh = WindowManager.getImage("Count Masks of " + file.getName());
+	/**
+	 * Adds the particles and count masks of every frame of the movie to the segmentation cache. The run does not depend on the cache,
+	 * so an entry that cannot be written is only logged.
+	 * @param key The key of the movie and segmentation parameters
+	 * @param raw The raw actin stack
+	 * @param frameParticles The particles of every frame
+	 */
+	private void writeCachedSegmentation(String key, ImagePlus raw, ArrayList<ArrayList<Particle>> frameParticles) {
+		RunReport.Probe probe = report.start();
+		SegmentationCache.Writer writer = null;
+		try {
+			writer = segmentationCache.create(key, raw.getWidth(), raw.getHeight(), raw.getStackSize());
+			for(int slice = 1; slice < frameParticles.size(); slice++) {
+				writer.add(frameParticles.get(slice), masks.get(slice));
+			}
+			writer.commit();
+		} catch (IOException e) {
+			if(writer != null) {
+				writer.abort();
+			}
+			IJ.log("Could not cache the segmentation of " + actinFile.getName() + ": " + e);
+		}
+		report.stop("cache.write", probe);
+	}
 
-		//Get dimensions of the entire image to determine which regions to include
-		int imgHeight = imp.getImageStack().getProcessor(1).getHeight();
-		int imgWidth = imp.getImageStack().getProcessor(1).getWidth();
+	/**
+	 * Segments one frame of the actin stack and stores its count masks
+	 * @param stack The raw actin stack
+	 * @param slice The frame
+	 * @param minSize The minimum particle size in pixels
+	 * @return The particles found in the frame
+	 */
+	private ArrayList<Particle> segmentFrame(ImageStack stack, int slice, double minSize) {
+		RunReport.Probe probe = report.start();
+		ArrayList<Particle> particles = new ArrayList<Particle>();
+		masks.set(slice, labelFrame(segment(stack.getProcessor(slice)), slice, minSize, particles));
+		report.work("segmentation", probe);
+		return particles;
+	}
 
+	/**
+	 * Makes the binary mask of a frame with a Segmenter of the pool
+	 * @param frame The raw actin frame, it is not modified
+	 * @return The binary mask of the frame
+	 */
+	private ByteProcessor segment(ImageProcessor frame) {
+		Segmenter segmenter = segmenters.take();
+		ByteProcessor binary = segmenter.segment(frame, report);
+		segmenters.give(segmenter);
+		return binary;
+	}
 
+	/**
+	 * Finds the particles of the binary mask of a frame (Analyze Particles)
+	 * @param binary The binary mask of the frame
+	 * @param slice The frame
+	 * @param minSize The minimum particle size in pixels
+	 * @param particles The particles found are added to this list
+	 * @return The count masks of the frame
+	 */
+	private ShortProcessor labelFrame(ByteProcessor binary, int slice, double minSize, ArrayList<Particle> particles) {
+		RunReport.Probe probe = report.start();
+		ComponentLabeler labeler = labelers.take();
+		ShortProcessor mask = labeler.label(binary, slice, minSize, particles);
+		labelers.give(labeler);
+		report.stop("segmentation.particle_analysis", probe);
+		report.count("frames", 1);
+		report.count("pixels_segmented", (long) binary.getWidth()*binary.getHeight());
+		report.count("particles", particles.size());
+		return mask;
+	}
 
-		//Store the regions of interest in the rois array and save the ROIs for future references
+	/**
+	 * Adds the particles whose background box fits in the image to the roi store
+	 * @param particles The particles found by the labelling
+	 * @param imgWidth The width of the frames
+	 * @param imgHeight The height of the frames
+	 */
+	private void addParticles(ArrayList<Particle> particles, int imgWidth, int imgHeight) {
 		//Need to pre-process regions where their center is out of image parameters to prevent getting
-		//inaccurate background intensity values 
-		RoiManager manager = RoiManager.getInstance();
-		allRois = new Roi[manager.getCount()];
-		int roisCount = 0;
+		//inaccurate background intensity values
 
-		//iterates through all regions created by the Analyze Particles function
-		for (int i = 0; i < manager.getCount(); i++) {
-			Roi currentRoi = manager.getRoi(i);
-			double[] centroidCoor = currentRoi.getContourCentroid();
-			Centroid centroid = new Centroid(centroidCoor[0], centroidCoor[1]);
+		//iterates through all regions found by the labelling
+		int kept = 0;
+		for (Particle currentRoi : particles) {
+			Centroid centroid = new Centroid(currentRoi.centroidX, currentRoi.centroidY);
 
 			//series of if statements to check if a particular region will cause a background box that
 			//does not fit the parameters of the image
 			if((centroid.x - (boxDim/2)) < 0 || (centroid.y - (boxDim/2)) < 0) {
-				allRois[i] = null;
+				continue;
 			} else if((centroid.x + (boxDim/2)) > imgWidth || (centroid.y + (boxDim/2)) > imgHeight) {
-				allRois[i] = null;
-			} else {
-				allRois[i] = manager.getRoi(i);
-				roisCount++;
+				continue;
 			}
-		}
 
-		//final rois and their centroids are placed in a new array 
-		rois = new Roi[roisCount];
-
-		int m = 0;
-		for(int i = 0; i < allRois.length; i++) {
-			if(allRois[i] != null) {
-				//inserts roi within image bounds
-				rois[m] = allRois[i];
-				m++;
-			}
+			//inserts roi within image bounds, with its contour centroid
+			roiStore.add(currentRoi);
+			kept++;
 		}
+		report.count("rois", kept);
+	}
 
-		manager.close();
-		imp.close();
+	/**
+	 * The minimum particle size is in calibrated units (like in Analyze Particles), the labelling works in pixels
+	 * @param imp The image the particles are found in
+	 * @return The minimum particle size in pixels
+	 */
+	private double minimumParticleSize(ImagePlus imp) {
+		Calibration cal = imp.getCalibration();
+		return particleSizeMin/(cal.pixelWidth*cal.pixelHeight);
 	}
 
 	/**
 	 * Once the stacks have been processed, data is collected from the ROIs using this method to compute the final ratiometric values. 
 	 * The method also eliminates any values that do not meet the required number of consecutive filaments or average area across frames
 	 * determined by the GUI inputs.
-	 * @param fileActin The Actin channel movie selected from the GUI
-	 * @param fileABP The ABP channel movie selected from the GUI
-	 * @param rois The regions of interest (rois) extracted using the Analyze Particles function in the ParticleSelector method
+	 * @param stacks The Actin and ABP channel movies selected from the GUI (the actin stack was already opened by ParticleSelector)
+	 * @param rois The regions of interest (rois) found by the labelling in the ParticleSelector method
 	 * @throws IOException 
 	 */
-	private void determineEnrichment(File fileActin, File fileABP, Roi[] rois) throws IOException {
+	private void determineEnrichment(StackLoader stacks, RoiStore rois) throws IOException {
 
-		//opens the stacks
-		impActin = IJ.openImage(fileActin.getAbsolutePath());
-		impABP = IJ.openImage(fileABP.getAbsolutePath());
+		//the stacks are only decoded once
+		RunReport.Probe probe = report.start();
+		impActin = stacks.actin();
+		impABP = stacks.ABP();
+		report.stop("open", probe);
 		int slices = impABP.getStackSize();
 
 		// Hash ROIs into frames and sort them accordingly by tracking filaments across frames
-		ArrayList<Roi>[] roisInEachFrame = hashROIs(rois);  
+		probe = report.start();
+		int[][] roisInEachFrame = hashROIs(rois);  
+		report.stop("tracking", probe);
+		if(roisInEachFrame == null) {
+			return;
+		}
 
 		//Intensities[Slice][ROI Intensity Info] 
 		Intensities[][] IntensityData = new Intensities[roisInEachFrame.length][];
-		int frameCount = 0;
 
 
 		//keeps track of total intensity per image in stack (of ABP channel) to check for photobleaching
 		totCountValABP = new double[slices+1];
 
 		//compute the necessary values for each filament in each frame in the image stack
-		for(ArrayList<Roi> frame : roisInEachFrame){
-			IntensityData[frameCount] = determineIntensities(frame, frameCount, impActin, impABP, impThresh);
-			frameCount++;
+		//each frame only reads its own slices and writes its own entries of IntensityData and totCountValABP,
+		//so the frames can be measured at the same time
+		probe = report.start();
+		if(doParallelFrames) {
+			IntStream.range(0, roisInEachFrame.length).parallel().forEach(frameCount ->
+				IntensityData[frameCount] = measureFrame(roisInEachFrame[frameCount], frameCount));
+		} else {
+			for(int frameCount = 0; frameCount < roisInEachFrame.length; frameCount++) {
+				IntensityData[frameCount] = measureFrame(roisInEachFrame[frameCount], frameCount);
+			}
 		}
+		report.elapsed("measurement", probe);
 
 
-		//***************CREATE FOR LOOP TO ITERATE THROUGH IntensityData 2D ARRAY TO GET NECCESSARY INFO****************//
+		writeResults(roisInEachFrame, IntensityData, rois);
+	}
 
-		if(doTracking) {
-			File output = new File(newFileLocation + "\\" + actinFile.getName() + "_TrackingDataOutput.csv");
-			PrintWriter pw2 = null;
-			try {
-				pw2 = new PrintWriter(output);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+	/**
+	 * Streaming version of ParticleSelector and determineEnrichment: each frame is segmented, its rois are linked to the filaments
+	 * of the previous frames and measured before the next frame is read, so only the pixels of the current frame are in memory.
+	 * Only the rois, the tracks and the measurements are kept until the results are written.
+	 * @param stacks The Actin and ABP channel movies selected from the GUI (opened as virtual stacks)
+	 * @throws IOException
+	 */
+	private void processFrames(StackLoader stacks) throws IOException {
+		RunReport.Probe probe = report.start();
+		impActin = stacks.actin();
+		impABP = stacks.ABP();
+		report.stop("open", probe);
+		int slices = impActin.getStackSize();
+		double minSize = minimumParticleSize(impActin);
+
+		roiStore = new RoiStore(slices + 1);
+		startTracking();
+
+		int[][] roisInEachFrame = new int[slices + 1][];
+		roisInEachFrame[0] = new int[0];
+		Intensities[][] IntensityData = new Intensities[slices + 1][];
+		totCountValABP = new double[slices + 1];
+
+		//the frames are read from the segmentation cache when the movie is in it, otherwise they are added to it as they are segmented
+		if(segmentationCache != null) {
+			probe = report.start();
+			String cacheKey = segmentationCache.key(actinFile, minSize, doWatershed);
+			cachedFrames = segmentationCache.open(cacheKey, impActin.getWidth(), impActin.getHeight(), slices);
+			if(cachedFrames == null) {
+				report.count("cache_misses", 1);
+				newCacheEntry = segmentationCache.create(cacheKey, impActin.getWidth(), impActin.getHeight(), slices);
+			} else {
+				report.count("cache_hits", 1);
+			}
+			report.stop("cache.lookup", probe);
+		}
+
+		try {
+			for(int slice = 1; slice <= slices; slice++) {
+				processFrame(slice, impActin.getImageStack().getProcessor(slice), impABP.getImageStack().getProcessor(slice),
+						minSize, roisInEachFrame, IntensityData);
+			}
+
+			if(newCacheEntry != null) {
+				probe = report.start();
+				try {
+					newCacheEntry.commit();
+				} catch (IOException e) {
+					IJ.log("Could not cache the segmentation of " + actinFile.getName() + ": " + e);
+				}
+				newCacheEntry = null;
+				report.stop("cache.write", probe);
+			}
+		} finally {
+			if(cachedFrames != null) {
+				cachedFrames.close();
+				cachedFrames = null;
+			}
+			if(newCacheEntry != null) {
+				newCacheEntry.abort();
+				newCacheEntry = null;
 			}
+		}
 
-			StringBuilder builder2 = new StringBuilder();
+		if(roiStore.size() == 0) {
+			IJ.log("There are no ROIs that meet criteria! " + actinFile.getName());
+		} else {
+			writeResults(roisInEachFrame, IntensityData, roiStore);
+		}
+	}
+
+	/**
+	 * Live version of processFrames: the actin and ABP movies are followed while the acquisition software writes them
+	 * (growing TIFF files or folders with one TIFF per frame). Each frame is processed as soon as it is complete in both channels
+	 * and its measurements are appended to LiveOutput.csv, so the enrichment can be followed during the experiment.
+	 * The acquisition is considered finished when no frame arrived for liveTimeout seconds (or Esc is pressed),
+	 * the regular results, which need the complete tracks, are then written.
+	 * @throws IOException
+	 */
+	private void processLive() throws IOException {
+		GrowingStack actinSource = new GrowingStack(actinFile);
+		GrowingStack ABPSource = new GrowingStack(ABPFile);
+
+		roiStore = new RoiStore(64);
+		startTracking();
+
+		int[][] roisInEachFrame = new int[64][];
+		roisInEachFrame[0] = new int[0];
+		Intensities[][] IntensityData = new Intensities[64][];
+		totCountValABP = new double[64];
+
+		CsvWriter liveOutput = new CsvWriter(new File(newFileLocation, actinFile.getName() + "_LiveOutput.csv"),
+				"FrameNo,Filament,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act,TotABPInten");
+		double minSize = 0;
+		int slices = 0;
+		long lastFrameTime = System.currentTimeMillis();
+		try {
+			while(true) {
+				int available = Math.min(actinSource.available(), ABPSource.available());
+				int processed = slices;
+				for(int slice = slices + 1; slice <= available; slice++) {
+					RunReport.Probe probe = report.start();
+					ImagePlus frameActin = actinSource.frame(slice);
+					ImagePlus frameABP = ABPSource.frame(slice);
+					report.stop("open", probe);
+					if(frameActin == null || frameABP == null) {
+						//not a readable TIFF yet (e.g. a file of the folder that has its final length but not its contents),
+						//it is opened again at the next poll
+						break;
+					}
+					if(slice == 1) {
+						minSize = minimumParticleSize(frameActin);
+					}
+
+					if(slice >= roisInEachFrame.length) {
+						int capacity = roisInEachFrame.length*2;
+						roisInEachFrame = Arrays.copyOf(roisInEachFrame, capacity);
+						IntensityData = Arrays.copyOf(IntensityData, capacity);
+						totCountValABP = Arrays.copyOf(totCountValABP, capacity);
+						roiStore.ensureFrames(capacity);
+					}
+
+					processFrame(slice, frameActin.getProcessor(), frameABP.getProcessor(), minSize, roisInEachFrame, IntensityData);
+					probe = report.start();
+					writeLiveRows(liveOutput, slice, IntensityData[slice]);
+					report.stop("output.live_csv", probe);
+					IJ.showStatus("Live: frame " + slice + " measured");
+					slices = slice;
+				}
+
+				if(slices > processed) {
+					lastFrameTime = System.currentTimeMillis();
+				} else if(System.currentTimeMillis() - lastFrameTime > liveTimeout*1000L || IJ.escapePressed()) {
+					if(available > slices) {
+						IJ.log("Could not read frame " + (slices + 1) + " of " + actinFile.getName() + ", the frames before it are written");
+					}
+					break;
+				} else {
+					Thread.sleep(LIVE_POLL_MS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); //stops following the files, the frames processed so far are written
+		} finally {
+			liveOutput.close();
+		}
+
+		if(roiStore.size() == 0) {
+			IJ.log("There are no ROIs that meet criteria! " + actinFile.getName());
+		} else {
+			writeResults(Arrays.copyOf(roisInEachFrame, slices + 1), Arrays.copyOf(IntensityData, slices + 1), roiStore);
+		}
+	}
+
+	/**
+	 * Segments one frame, links its rois to the filaments of the previous frames and measures them (streaming and live modes)
+	 * @param slice The frame, frames must be given in order
+	 * @param actinIp The raw actin frame, the segmentation is done on a copy
+	 * @param ABPIp The raw ABP frame
+	 * @param minSize The minimum particle size in pixels
+	 * @param roisInEachFrame The tracked order of the rois of the frame is stored here
+	 * @param IntensityData The measurements of the frame are stored here
+	 */
+	private void processFrame(int slice, ImageProcessor actinIp, ImageProcessor ABPIp, double minSize,
+			int[][] roisInEachFrame, Intensities[][] IntensityData) {
+		//segment a copy of the frame, the raw pixels are measured
+		RunReport.Probe probe = report.start();
+		ArrayList<Particle> particles = new ArrayList<Particle>();
+		ImageProcessor mask = cachedFrames != null ? readCachedFrame(slice, particles) : null;
+		if(mask == null) {
+			mask = labelFrame(segment(actinIp), slice, minSize, particles);
+			if(newCacheEntry != null) {
+				addCachedFrame(particles, mask);
+			}
+		}
+		addParticles(particles, actinIp.getWidth(), actinIp.getHeight());
+		report.stop("segmentation", probe);
+
+		//link to the previous frame and measure
+		probe = report.start();
+		roisInEachFrame[slice] = trackFrame(roiStore, slice, roisInEachFrame[slice - 1]);
+		report.stop("tracking", probe);
+		if(roisInEachFrame[slice].length > 0) {
+			probe = report.start();
+			IntensityData[slice] = determineIntensities(roisInEachFrame[slice], slice, actinIp, ABPIp, mask);
+			report.elapsed("measurement", probe);
+		}
+	}
+
+	/**
+	 * Reads the next frame of the cached segmentation of the movie being streamed. If the entry cannot be read, it is deleted
+	 * and this frame and the following ones are segmented instead.
+	 * @param slice The frame
+	 * @param particles The particles of the frame are added to this list
+	 * @return The count masks of the frame, null if it has to be segmented
+	 */
+	private ImageProcessor readCachedFrame(int slice, ArrayList<Particle> particles) {
+		RunReport.Probe probe = report.start();
+		try {
+			ImageProcessor mask = cachedFrames.next(slice, particles);
+			report.stop("cache.read", probe);
+			report.count("frames", 1);
+			report.count("particles", particles.size());
+			return mask;
+		} catch (IOException e) {
+			IJ.log("Could not read the cached segmentation of " + actinFile.getName() + ", segmenting it again: " + e);
+			particles.clear();
+			cachedFrames.discard();
+			cachedFrames = null;
+			report.count("cache_misses", 1);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a segmented frame to the new cache entry of the movie being streamed. If it cannot be written, the entry is dropped
+	 * and the movie is processed without it.
+	 * @param particles The particles of the frame
+	 * @param mask The count masks of the frame
+	 */
+	private void addCachedFrame(ArrayList<Particle> particles, ImageProcessor mask) {
+		RunReport.Probe probe = report.start();
+		try {
+			newCacheEntry.add(particles, mask);
+		} catch (IOException e) {
+			IJ.log("Could not cache the segmentation of " + actinFile.getName() + ": " + e);
+			newCacheEntry.abort();
+			newCacheEntry = null;
+		}
+		report.stop("cache.write", probe);
+	}
+
+	/**
+	 * Appends the measurements of a frame to the live output and flushes them to the file
+	 * @param output The live output
+	 * @param slice The frame
+	 * @param frameData The measurements of the frame, null if it has no rois
+	 * @throws IOException
+	 */
+	private void writeLiveRows(CsvWriter output, int slice, Intensities[] frameData) throws IOException {
+		if(frameData != null) {
+			for(int l = 0; l < frameData.length; l++) {
+				Intensities dataPoint = frameData[l];
+				if(dataPoint != null) {
+					output.cell(slice).cell(l).cell(dataPoint.areaInsideROIs).cell(dataPoint.normAvgAct).cell(dataPoint.normAvgABP)
+							.cell(dataPoint.ratio).cell(totCountValABP[slice]).endRow();
+				}
+			}
+		}
+		output.flush();
+	}
+
+	/**
+	 * Measures the rois of one frame of the stacks
+	 * @param frame The indices (in roiStore) of the Rois of the frame in their tracked order, -1 where a filament is missing
+	 * @param frameCount The frame
+	 * @return The measurements of the frame, null if it has no rois
+	 */
+	private Intensities[] measureFrame(int[] frame, int frameCount) {
+		if(frame.length == 0 || frameCount == 0) {
+			return null;
+		}
+		return determineIntensities(frame, frameCount, impActin.getImageStack().getProcessor(frameCount),
+				impABP.getImageStack().getProcessor(frameCount), masks.get(frameCount));
+	}
+
+	/**
+	 * Writes the csv (and binary) results and the RoiSet of the rois that meet the required number of consecutive filaments and average area
+	 * @param roisInEachFrame For each frame, the indices of its rois in the store sorted correctly (tracked)
+	 * @param IntensityData The measurements of all the frames
+	 * @param rois The store of all the rois
+	 * @throws IOException
+	 */
+	private void writeResults(int[][] roisInEachFrame, Intensities[][] IntensityData, RoiStore rois) throws IOException {
+
+		//***************CREATE FOR LOOP TO ITERATE THROUGH IntensityData 2D ARRAY TO GET NECCESSARY INFO****************//
+
+		if(doTracking) {
 			String ColumnNamesList2 = "FrameNo,Filament,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act" + "," + "," + "," + "FrameNo,TotABPInten" + 
 					"," + "," +"Number of Filaments";
-			builder2.append(ColumnNamesList2 + "\n");
+			CsvWriter trackingOutput = new CsvWriter(new File(newFileLocation, actinFile.getName() + "_TrackingDataOutput.csv"), ColumnNamesList2);
+
+			//the frame, filament and kind of every row written, so the rows can be written again sorted by filament
+			int[] rowLog = new int[3*1024];
+			int rows = 0;
 
 			int prevSlice = -1;
 			int prevFilament = -1;
@@ -334,70 +984,65 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 			boolean filamentAdded = false;
 			boolean firstLine = true;
 
-			int g = 0;
-			int numForAreaAvg = 0;
-			int numForFilamentAvg = 0;
 			int numOfFilaments = 0; //keeps track of how many filaments meet the required consecutive number of appearences 
 
+			//every filament number used in a frame has an entry in the table
+			RunReport.Probe probe = report.start();
+			for(int m = 0; m < IntensityData.length; m++) {
+				if(IntensityData[m] != null) {
+					tracks.ensure(IntensityData[m].length);
+				}
+			}
 
-			ArrayList<Position> finalRois = new ArrayList<Position>();
-
-			//calculate the average area for filaments that appear consecutively the right amount of time
-			//also will add the position of the Rois that meet both requirements for consecutive appearances and average area 
-			while(g < includedFilaments.size()) { //loops through the filaments (rows index for intensities 2D array)
-				if(includedFilaments.get(g) >= filamentThreshold) {	
-					numOfFilaments++;
-
-					//Necessary for calculating SD
-					int size = includedFilaments.get(g);
-					double[] ratios = new double[size + 1];
-					int ratiosCounter = 0;
-
-					for(int i = 1; i < IntensityData.length; i++) { //loops through all frames in a movie (column index)
-						if(IntensityData[i] != null ) {
-							if(g < IntensityData[i].length) {
-								if(IntensityData[i][g] != null) {
-									double currentValAvg = averageAreaForFilaments.get(g);
-									double valToBeAddedAvg = IntensityData[i][g].areaInsideROIs;
-									averageAreaForFilaments.set(g, (currentValAvg + valToBeAddedAvg));
-									numForAreaAvg++;
-
-									//calculates the average intensity for a filament across multiple frames
-									double currentValInt = avgIntensityForFilaments.get(g);
-									double valToBeAddedInt = IntensityData[i][g].ratio;
-
-									//add this value to the current list of ratios for this particular filament that has been tracked
-									ratios[ratiosCounter] = valToBeAddedInt;
-									ratiosCounter++;
-
-									avgIntensityForFilaments.set(g,(currentValInt + valToBeAddedInt));
-									numForFilamentAvg++;
-
-									finalRois.add(new Position(i,g));
-								}
-							} 
+			//a single pass over all the frames updates the running average area, average ratio and SD of every filament
+			//and collects the position of the Rois of the filaments that appear consecutively the right amount of time
+			ArrayList<Position> measuredRois = new ArrayList<Position>();
+			for(int i = 1; i < IntensityData.length; i++) { //loops through all frames in a movie (column index)
+				if(IntensityData[i] != null) {
+					for(int g = 0; g < IntensityData[i].length; g++) { //loops through the filaments (rows index for intensities 2D array)
+						if(IntensityData[i][g] != null) {
+							tracks.add(g, IntensityData[i][g].areaInsideROIs, IntensityData[i][g].ratio);
+							if(tracks.appearances[g] >= filamentThreshold) {
+								measuredRois.add(new Position(i,g));
+							}
 						}
 					}
+				}
+			}
 
-					double avgIntForFilament = (avgIntensityForFilaments.get(g)/numForFilamentAvg);
-
-					averageAreaForFilaments.set(g, (averageAreaForFilaments.get(g)/numForAreaAvg));
-					avgIntensityForFilaments.set(g, avgIntForFilament);
-					ratiosList.set(g, ratios);
+			for(int g = 0; g < tracks.size(); g++) {
+				if(tracks.appearances[g] >= filamentThreshold) {
+					numOfFilaments++;
+					numIncludedFilaments++;
+				}
+			}
 
-					//calculate SD for a particular set of included filaments
-					sdForFilaments.set(g, StandardDev(avgIntForFilament, ratiosList.get(g)));
+			//the positions ordered by filament and then by frame (counting sort on the filament number)
+			int[] start = new int[tracks.size() + 1];
+			for(Position position : measuredRois) {
+				start[position.R + 1]++;
+			}
+			for(int g = 0; g < tracks.size(); g++) {
+				start[g + 1] += start[g];
+			}
+			Position[] sorted = new Position[measuredRois.size()];
+			for(Position position : measuredRois) {
+				sorted[start[position.R]++] = position;
+			}
+			report.stop("aggregation", probe);
 
-					numForAreaAvg = 0;
-					numForFilamentAvg = 0;
-					numIncludedFilaments++;
-					g++;
-				} else {
-					g++;
+			int kept = 0;
+			for(int g = 0; g < tracks.size(); g++) {
+				if(tracks.appearances[g] >= filamentThreshold && tracks.averageArea(g) < maxFilamentArea) {
+					kept++;
 				}
 			}
+			report.count("tracks", tracks.size());
+			report.count("tracks_consecutive", numOfFilaments); //enough consecutive appearances, before the area filter
+			report.count("tracks_kept", kept);
+			report.count("tracks_dropped", tracks.size() - kept);
 
-			System.out.println("The number of filaments after consecutive appearences: " + numOfFilaments);
+			probe = report.start();
 
 			//Writes to a csv file the intensity values of Rois that meet both area and consecutive filament requirements 
 			for(int m = 0; m < IntensityData.length; m++) {
@@ -405,7 +1050,7 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 					int size = IntensityData[m].length;
 
 					for(int l = 0; l < size; l++) {
-						if(includedFilaments.get(l) >= filamentThreshold && averageAreaForFilaments.get(l) < maxFilamentArea) {
+						if(tracks.appearances[l] >= filamentThreshold && tracks.averageArea(l) < maxFilamentArea) {
 
 							if(prevSlice == m) {
 								added = true;
@@ -420,145 +1065,98 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 								prevFilament = l;
 							}
 
-							//If a null value is reached it will be replaced by zeros 
-							if(IntensityData[m][l] == null) {
-								if(!filamentAdded) {
-									if(!added) {
-										if(firstLine) {
-											builder2.append((m) + "," + (l) + "," + 0 + "," + 0  + "," + 0 + "," + 0 + "," + avgIntensityForFilaments.get(l) + "," 
-													+ sdForFilaments.get(l) + "," + m + "," + totCountValABP[m] + "," + "," + numIncludedFilaments);
-
-											builder2.append('\n');
-											prevSlice = m;
-
-											firstLine = false;
-										} else {
-											builder2.append((m) + "," + (l) + "," + 0 + "," + 0  + "," + 0 + "," + 0 + "," + avgIntensityForFilaments.get(l) + 
-													"," + sdForFilaments.get(l) + "," + m + "," + totCountValABP[m]);
-
-											builder2.append('\n');
-											prevSlice = m;
-
-										}
-									} else {
-										builder2.append((m) + "," + (l) + "," + 0 + "," + 0  + "," + 0 + "," + 0 + "," + avgIntensityForFilaments.get(l) + ","
-												+ sdForFilaments.get(l));
-
-										builder2.append('\n');
-
-									}
+							//the first row of a frame also gives the total ABP intensity of that frame (and the very first row the number of filaments),
+							//the first row of a filament also gives its average ratio and SD
+							int kind;
+							if(!filamentAdded) {
+								if(!added) {
+									kind = firstLine ? ROW_FIRST : ROW_FILAMENT_AND_FRAME;
+									prevSlice = m;
+									firstLine = false;
 								} else {
-									if(!added) {
-										builder2.append((m) + "," + (l) + "," + 0 + "," + 0  + "," + 0 + "," + 0 + "," + "," + "," + m + "," + 
-												totCountValABP[m]);
-
-										builder2.append('\n');
-										prevSlice = m;	
-									} else {
-										builder2.append((m) + "," + (l) + "," + 0 + "," + 0  + "," + 0 + "," + 0 + ",");
-
-										builder2.append('\n');
-									}
+									kind = ROW_FILAMENT;
 								}
 							} else {
-								if(!filamentAdded) {
-									if(!added) {
-										if(firstLine) {
-											Intensities dataPoint = IntensityData[m][l];
-											builder2.append((m) + "," + (l) + "," + dataPoint.areaInsideROIs + "," + dataPoint.normAvgAct  
-													+ "," + dataPoint.normAvgABP + "," + dataPoint.ratio + "," + avgIntensityForFilaments.get(l) + 
-													"," + sdForFilaments.get(l) + "," + m + "," + totCountValABP[m] + "," + "," + numIncludedFilaments);
-
-											builder2.append('\n');
-											prevSlice = m;
-
-											firstLine = false;
-										} else {
-											Intensities dataPoint = IntensityData[m][l];
-											builder2.append((m) + "," + (l) + "," + dataPoint.areaInsideROIs + "," + dataPoint.normAvgAct  
-													+ "," + dataPoint.normAvgABP + "," + dataPoint.ratio + "," + avgIntensityForFilaments.get(l) 
-													+ "," + sdForFilaments.get(l) + "," + m + "," + totCountValABP[m]);
-
-											builder2.append('\n');
-											prevSlice = m; 
-
-										}
-									} else {
-										Intensities dataPoint = IntensityData[m][l];
-										builder2.append((m) + "," + (l) + "," + dataPoint.areaInsideROIs + "," + dataPoint.normAvgAct  
-												+ "," + dataPoint.normAvgABP + "," + dataPoint.ratio + "," + avgIntensityForFilaments.get(l) + ","
-												+ sdForFilaments.get(l));
-
-										builder2.append('\n');
-
-									} 
+								if(!added) {
+									kind = ROW_FRAME;
+									prevSlice = m;
 								} else {
-									if(!added) {
-										Intensities dataPoint = IntensityData[m][l];
-										builder2.append((m) + "," + (l) + "," + dataPoint.areaInsideROIs + "," + dataPoint.normAvgAct  
-												+ "," + dataPoint.normAvgABP + "," + dataPoint.ratio + "," + "," + "," + m + "," + totCountValABP[m]);
-
-										builder2.append('\n');
-										prevSlice = m; 
+									kind = ROW_PLAIN;
+								}
+							}
 
-									} else {
-										Intensities dataPoint = IntensityData[m][l];
-										builder2.append((m) + "," + (l) + "," + dataPoint.areaInsideROIs + "," + dataPoint.normAvgAct  
-												+ "," + dataPoint.normAvgABP + "," + dataPoint.ratio + ",");
+							writeTrackingRow(trackingOutput, m, l, kind, IntensityData);
 
-										builder2.append('\n');
-									}
-								}
+							if(3*rows == rowLog.length) {
+								rowLog = Arrays.copyOf(rowLog, rowLog.length*2);
 							}
+							rowLog[3*rows] = m;
+							rowLog[3*rows + 1] = l;
+							rowLog[3*rows + 2] = kind;
+							rows++;
 						}
 					}
 				} 
 			}
 
-			impActin.close();
-			impABP.close();
-			pw2.write(builder2.toString());
-			pw2.close();
-
-			Sort(output);
-
-			//Will show and save the Rois that meet the requirements listed above (Area & Consecutive Filaments) 
-			RoiManager manager = new RoiManager();
-
-			int h = 0;
-			while(h < finalRois.size()) {
-				outerloop:
-					for(int c = 1; c < roisInEachFrame.length; c++) {
-						for(int r = 0; r < roisInEachFrame[c].size(); r++) {
-							if(c == finalRois.get(h).getPositionC() && r == finalRois.get(h).getPositionR()) {
-								if(averageAreaForFilaments.get(r) < maxFilamentArea) {
-									manager.addRoi(roisInEachFrame[c].get(r));
-									h++;
-									break outerloop;
-								} else {
-									h++;
-									break outerloop;
-								}
-							} 
-						}
-					}
+			trackingOutput.close();
+			report.stop("output.tracking_csv", probe);
+			report.count("csv_rows", rows);
+
+			//the same rows sorted by filament (rows of a filament stay in frame order), counting sort on the filament number
+			probe = report.start();
+			int[] filamentStart = new int[tracks.size() + 1];
+			for(int i = 0; i < rows; i++) {
+				filamentStart[rowLog[3*i + 1] + 1]++;
+			}
+			for(int f = 0; f < tracks.size(); f++) {
+				filamentStart[f + 1] += filamentStart[f];
+			}
+			int[] sortedRows = new int[rows];
+			for(int i = 0; i < rows; i++) {
+				sortedRows[filamentStart[rowLog[3*i + 1]]++] = i;
 			}
 
-			manager.runCommand("Save", newFileLocation + "\\" + actinFile.getName() + "_RoiSet.zip");
+			CsvWriter sortedOutput = new CsvWriter(new File(newFileLocation, actinFile.getName() + "_sorted_output.csv"),
+					"FrameNo,Filament,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act,AvgRatio,"
+					+ "StandarDev,FrameNo,TotABPInten" + "," + "," +"Number of Filaments");
+			for(int i : sortedRows) {
+				writeTrackingRow(sortedOutput, rowLog[3*i], rowLog[3*i + 1], rowLog[3*i + 2], IntensityData);
+			}
+			sortedOutput.close();
+			report.stop("output.sorted_csv", probe);
 
-		} else {
+			if(doBinaryOutput) {
+				probe = report.start();
+				writeTrackingColumns(sortedRows, rowLog, IntensityData);
+				report.stop("output.binary", probe);
+			}
 
-			// prepares the printer to create the csv file
-			PrintWriter pw = null;
+			//Will save the Rois that meet the requirements listed above (Area & Consecutive Filaments), written to the zip
+			//as they are accepted, in the order of the positions (by filament and then by frame)
+			probe = report.start();
+			int written = 0;
+			RoiSetWriter roiSet = new RoiSetWriter(new File(newFileLocation, actinFile.getName() + "_RoiSet.zip"));
 			try {
-				pw = new PrintWriter(new File(newFileLocation + "\\" + actinFile.getName() + "_DataOutput.csv"));
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+				for(Position position : sorted) {
+					if(tracks.averageArea(position.R) < maxFilamentArea) {
+						roiSet.add(rois.rois[position.C][roisInEachFrame[position.C][position.R]].outline(), position.R, position.C);
+						written++;
+					}
+				}
+			} finally {
+				roiSet.close();
 			}
+			report.stop("output.roiset", probe);
+			report.count("rois_written", written);
+
+		} else {
 
-			StringBuilder builder = new StringBuilder();
+			// prepares the writer to create the csv file
+			RunReport.Probe probe = report.start();
+			int rows = 0;
 			String ColumnNamesList = "FrameNo,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act";
-			builder.append(ColumnNamesList + "\n");
+			CsvWriter output = new CsvWriter(new File(newFileLocation, actinFile.getName() + "_DataOutput.csv"), ColumnNamesList);
 
 			for(int m = 0; m < IntensityData.length; m++) {
 				if(IntensityData[m] != null) {
@@ -567,90 +1165,228 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 					for(int l = 0; l < size; l++) {
 						double normAct = (IntensityData[m][l].averageAct - IntensityData[m][l].averageActBack);
 						double normAvgABP = (IntensityData[m][l].averageABP - IntensityData[m][l].averageABPBack);
-						builder.append((m) + "," + IntensityData[m][l].areaInsideROIs + "," + normAct  + "," + normAvgABP + "," + normAvgABP/normAct);
-
-						builder.append('\n');
+						output.cell(m).cell(IntensityData[m][l].areaInsideROIs).cell(normAct).cell(normAvgABP).cell(normAvgABP/normAct);
+						output.endRow();
+						rows++;
 					}
 				} 
 			}
 
-			impActin.close();
-			impABP.close();
-			pw.write(builder.toString());
-			pw.close();
+			output.close();
+			report.stop("output.csv", probe);
+			report.count("csv_rows", rows);
+
+			if(doBinaryOutput) {
+				probe = report.start();
+				writeColumns(IntensityData);
+				report.stop("output.binary", probe);
+			}
 		}    
 	}
 
+	/**
+	 * Writes the rows of the sorted output to a binary columnar file (see ColumnarWriter). Missing filaments have measured = 0
+	 * and zeros as measurements, every row has the average ratio and SD of its filament and the total ABP intensity of its frame.
+	 * @param sortedRows The rows in the order of the sorted output
+	 * @param rowLog The frame, filament and kind of every row
+	 * @param IntensityData The measurements of all the frames
+	 * @throws IOException
+	 */
+	private void writeTrackingColumns(int[] sortedRows, int[] rowLog, Intensities[][] IntensityData) throws IOException {
+		int rows = sortedRows.length;
+		int[] frame = new int[rows];
+		int[] filament = new int[rows];
+		int[] measured = new int[rows];
+		double[] area = new double[rows];
+		double[] normAct = new double[rows];
+		double[] normABP = new double[rows];
+		double[] ratio = new double[rows];
+		double[] avgRatio = new double[rows];
+		double[] sd = new double[rows];
+		double[] totABP = new double[rows];
+
+		for(int k = 0; k < rows; k++) {
+			int m = rowLog[3*sortedRows[k]];
+			int l = rowLog[3*sortedRows[k] + 1];
+			frame[k] = m;
+			filament[k] = l;
+			Intensities dataPoint = IntensityData[m][l];
+			if(dataPoint != null) {
+				measured[k] = 1;
+				area[k] = dataPoint.areaInsideROIs;
+				normAct[k] = dataPoint.normAvgAct;
+				normABP[k] = dataPoint.normAvgABP;
+				ratio[k] = dataPoint.ratio;
+			}
+			avgRatio[k] = tracks.mean[l];
+			sd[k] = tracks.sd(l);
+			totABP[k] = totCountValABP[m];
+		}
+
+		ColumnarWriter output = new ColumnarWriter(new File(newFileLocation, actinFile.getName() + "_results.bin"), rows);
+		output.addColumn("FrameNo", frame);
+		output.addColumn("Filament", filament);
+		output.addColumn("Measured", measured);
+		output.addColumn("Area", area);
+		output.addColumn("NormalizedAvgActin", normAct);
+		output.addColumn("NormalizedAvgABP", normABP);
+		output.addColumn("ABP/Act", ratio);
+		output.addColumn("AvgRatio", avgRatio);
+		output.addColumn("StandardDev", sd);
+		output.addColumn("TotABPInten", totABP);
+		output.write();
+	}
+
+	/**
+	 * Writes the rows of the untracked output to a binary columnar file (see ColumnarWriter)
+	 * @param IntensityData The measurements of all the frames
+	 * @throws IOException
+	 */
+	private void writeColumns(Intensities[][] IntensityData) throws IOException {
+		int rows = 0;
+		for(int m = 0; m < IntensityData.length; m++) {
+			if(IntensityData[m] != null) {
+				rows += IntensityData[m].length;
+			}
+		}
+
+		int[] frame = new int[rows];
+		double[] area = new double[rows];
+		double[] normAct = new double[rows];
+		double[] normABP = new double[rows];
+		double[] ratio = new double[rows];
+
+		int k = 0;
+		for(int m = 0; m < IntensityData.length; m++) {
+			if(IntensityData[m] != null) {
+				for(Intensities dataPoint : IntensityData[m]) {
+					frame[k] = m;
+					area[k] = dataPoint.areaInsideROIs;
+					normAct[k] = dataPoint.averageAct - dataPoint.averageActBack;
+					normABP[k] = dataPoint.averageABP - dataPoint.averageABPBack;
+					ratio[k] = normABP[k]/normAct[k];
+					k++;
+				}
+			}
+		}
+
+		ColumnarWriter output = new ColumnarWriter(new File(newFileLocation, actinFile.getName() + "_results.bin"), rows);
+		output.addColumn("FrameNo", frame);
+		output.addColumn("Area", area);
+		output.addColumn("NormalizedAvgActin", normAct);
+		output.addColumn("NormalizedAvgABP", normABP);
+		output.addColumn("ABP/Act", ratio);
+		output.write();
+	}
+
+	/**
+	 * Writes one row of the tracking output. Missing filaments (null Intensities) are written as zeros
+	 * @param output The csv file being written
+	 * @param m The frame
+	 * @param l The filament
+	 * @param kind Which of the per filament and per frame columns the row has (ROW_FIRST, ROW_FILAMENT_AND_FRAME, ROW_FILAMENT, ROW_FRAME or ROW_PLAIN)
+	 * @param IntensityData The measurements of all the frames
+	 * @throws IOException
+	 */
+	private void writeTrackingRow(CsvWriter output, int m, int l, int kind, Intensities[][] IntensityData) throws IOException {
+		output.cell(m).cell(l);
+
+		Intensities dataPoint = IntensityData[m][l];
+		if(dataPoint == null) {
+			output.cell(0).cell(0).cell(0).cell(0);
+		} else {
+			output.cell(dataPoint.areaInsideROIs).cell(dataPoint.normAvgAct).cell(dataPoint.normAvgABP).cell(dataPoint.ratio);
+		}
+
+		switch(kind) {
+			case ROW_FIRST:
+				output.cell(tracks.mean[l]).cell(tracks.sd(l)).cell(m).cell(totCountValABP[m]).empty().cell(numIncludedFilaments);
+				break;
+			case ROW_FILAMENT_AND_FRAME:
+				output.cell(tracks.mean[l]).cell(tracks.sd(l)).cell(m).cell(totCountValABP[m]);
+				break;
+			case ROW_FILAMENT:
+				output.cell(tracks.mean[l]).cell(tracks.sd(l));
+				break;
+			case ROW_FRAME:
+				output.empty().empty().cell(m).cell(totCountValABP[m]);
+				break;
+			default:
+				output.empty();
+		}
+		output.endRow();
+	}
+
 	/**
 	 * This method generates an array of Intensities objects that correspond to all the tracked rois in a particular frame of the movie
-	 * @param frame An ArrayList of all the Rois from a particular frame in their correct order (tracked)  
+	 * @param frame The indices (in roiStore) of all the Rois from a particular frame in their correct order (tracked), -1 where a filament is missing
 	 * @param frameCount The integer that represents the frame of the movie that is being considered 
-	 * @param impAct The actin channel image that corresponds to this frame in the movie
-	 * @param impABP The ABP channel image that corresponds to this frame in the movie
-	 * @param impThresh The Count Mask image produced by Analyze Particles that represents all the rois in this particular frame (thresholded) 
+	 * @param tempIpActin The actin channel image that corresponds to this frame in the movie
+	 * @param tempIpABP The ABP channel image that corresponds to this frame in the movie
+	 * @param tempIpThresh The Count Mask image produced by the labelling that represents all the rois in this particular frame (thresholded) 
 	 * @return An array of Intensities objects that hold the necessary values to compute the desired normalized ratios for this particular frame
 	 */
-	private Intensities[] determineIntensities (ArrayList<Roi> frame, int frameCount, 
-			ImagePlus impAct, ImagePlus impABP, ImagePlus impThresh) {
-		if(frame.size() == 0 || frameCount == 0){
+	private Intensities[] determineIntensities (int[] frame, int frameCount, 
+			ImageProcessor tempIpActin, ImageProcessor tempIpABP, ImageProcessor tempIpThresh) {
+		if(frame.length == 0 || frameCount == 0){
 
 			return null;
 		} else {
 
-			//need to get the imageProcessor for the slice we are currently at
-			ImageProcessor tempIpActin = impAct.getImageStack().getProcessor(frameCount); 
-			ImageProcessor tempIpABP = impABP.getImageStack().getProcessor(frameCount);
-			ImageProcessor tempIpThresh = impThresh.getImageStack().getProcessor(frameCount);
-
-			Intensities[] dataForSlice = new Intensities[frame.size()];
-
-			//System.out.println("This is the value outside the image: " + tempIpActin.get(largeFrameWidth+1, largeFrameHeight+1));
+			RunReport.Probe probe = report.start();
+			Intensities[] dataForSlice = new Intensities[frame.length];
+			double totABPForSlice = 0; //summed locally and stored once, so frames measured in parallel never share an entry
+			int measured = 0;
+			long pixelsMeasured = 0;
+
+			//sums the pixels of this slice straight from its pixel arrays
+			MeasurementKernel kernel = new MeasurementKernel(tempIpActin, tempIpABP, tempIpThresh);
+			int boxSize = (int) Math.ceil(boxDim);
+
+			//when the background boxes of this frame cover more pixels than the frame itself, summed-area tables
+			//(built in one pass over the frame) make every box a constant time lookup
+			BackgroundTable table = null;
+			if((long) frame.length*boxSize*boxSize > (long) tempIpActin.getWidth()*tempIpActin.getHeight()) {
+				table = backgroundTables.take();
+				table.build(tempIpActin, tempIpABP, tempIpThresh);
+				pixelsMeasured += (long) tempIpActin.getWidth()*tempIpActin.getHeight();
+			}
 
 			//iterate through all ROIs in this particular slice
-			for(int i = 0; i < frame.size(); i++) {
-
-				//variables to calculate for each filament
-				double actinBackgroundIntensity = 0;
-				double ABPBackgroundIntensity = 0;
-				double actinIntensity = 0;
-				double ABPIntensity = 0;
-
-				int totPixelsOutside = 0;
+			for(int i = 0; i < frame.length; i++) {
 
 				//checks if this particular Roi exists in this frame from the image stack
-				if(frame.get(i) != null) {
-					//find centroid for a given ROI in this slice of the stack
-					Roi currentROI = frame.get(i);
-					double[] centroidCoor = currentROI.getContourCentroid();
-					Centroid centroid = new Centroid(centroidCoor[0], centroidCoor[1]);
-
-					//create background box (represented as an ROI).
-					//this is done to find the point coordinates of our background box with respect to the 
-					//slice in the stack.
-					Roi backgroundRoi = new Roi( ((int) centroid.getX()-(boxDim/2)), ((int) centroid.getY()-(boxDim/2)), boxDim, boxDim);
-					Point[] pointsInBackgroundBox = backgroundRoi.getContainedPoints();
+				if(frame[i] != -1) {
+					//centroid for a given ROI in this slice of the stack, computed when it was found
+					Particle currentROI = roiStore.rois[frameCount][frame[i]];
+					Centroid centroid = new Centroid(roiStore.x[frameCount][frame[i]], roiStore.y[frameCount][frame[i]]);
 
+					//background box around the centroid, boxDim x boxDim pixels.
 					//this will generate the sum of all intensities that are in the background box but not in any of the rois generated (all filaments)
-					for (int v = 0; v < pointsInBackgroundBox.length; v++) {
-						int xVal = pointsInBackgroundBox[v].x;
-						int yVal = pointsInBackgroundBox[v].y;
-
-						if(tempIpThresh.get(xVal, yVal) == 0) {
-							actinBackgroundIntensity = actinBackgroundIntensity + tempIpActin.get(xVal, yVal);
-							ABPBackgroundIntensity = ABPBackgroundIntensity + tempIpABP.get(xVal, yVal);
-							totPixelsOutside++;
-						} 
+					int boxX = (int) ((int) centroid.getX()-(boxDim/2));
+					int boxY = (int) ((int) centroid.getY()-(boxDim/2));
+					double actinBackgroundIntensity;
+					double ABPBackgroundIntensity;
+					int totPixelsOutside;
+					if(table != null) {
+						table.sumBackground(boxX, boxY, boxSize, boxSize);
+						actinBackgroundIntensity = table.actinSum;
+						ABPBackgroundIntensity = table.ABPSum;
+						totPixelsOutside = table.pixelCount;
+					} else {
+						kernel.sumBackground(boxX, boxY, boxSize, boxSize);
+						actinBackgroundIntensity = kernel.actinSum;
+						ABPBackgroundIntensity = kernel.ABPSum;
+						totPixelsOutside = kernel.pixelCount;
 					}
 
-
-					Point[] pointsInCurrentRoi = currentROI.getContainedPoints();
-					int totPixelsInside = pointsInCurrentRoi.length; //get the area of the current roi
-
 					//calculate intensities inside ROIs for both channels
-					for(Point p : pointsInCurrentRoi) {
-						actinIntensity = actinIntensity + tempIpActin.get(p.x, p.y);
-						ABPIntensity = ABPIntensity + tempIpABP.get(p.x, p.y);
-					}
+					kernel.sumSpans(currentROI.spans);
+					double actinIntensity = kernel.actinSum;
+					double ABPIntensity = kernel.ABPSum;
+					int totPixelsInside = roiStore.area[frameCount][frame[i]]; //get the area of the current roi
+					measured++;
+					pixelsMeasured += table != null ? totPixelsInside : totPixelsInside + (long) boxSize*boxSize;
 
 					//generate the intensity object which will hold the important intensity values that will later be used to 
 					//generate the corrected values for quantification
@@ -659,12 +1395,20 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 					dataForSlice[i] = currentIntenData;
 
 					//This calculates the mean intensity value for the entire background box to later use for analysis of photobleaching effects
-					totCountValABP[frameCount] = totCountValABP[frameCount] + (ABPIntensity+ABPBackgroundIntensity)/(totPixelsOutside+totPixelsInside);
+					totABPForSlice = totABPForSlice + (ABPIntensity+ABPBackgroundIntensity)/(totPixelsOutside+totPixelsInside);
 				} else {
 					dataForSlice[i] = null;
 				}
 			}
 
+			if(table != null) {
+				backgroundTables.give(table);
+			}
+			totCountValABP[frameCount] = totABPForSlice;
+			report.work("measurement", probe);
+			report.count("measurements", measured);
+			report.count("pixels_measured", pixelsMeasured);
+
 			return dataForSlice;
 		}
 	}
@@ -672,322 +1416,99 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 	/**
 	 * This method sorts the rois generated by analyze particles into their respective frames and then calls on other methods to complete 
 	 * the tracking and organization of all the rois across multiple frames in a movie
-	 * @param clearedRois An array of all the rois that meet the initial requirements outlined by the method ParticleSelector 
-	 * @return An array of ArrayLists of rois which are sorted correctly (tracked) 
+	 * @param clearedRois The store of all the rois that meet the initial requirements outlined by the method ParticleSelector 
+	 * @return For each frame, the indices of its rois in the store sorted correctly (tracked), -1 where a filament is missing
 	 */
-	private ArrayList<Roi>[] hashROIs(Roi[] clearedRois) {
+	private int[][] hashROIs(RoiStore clearedRois) {
 
-		if(clearedRois.length == 0) {
-			System.out.println("There are no ROIs that meet criteria!");
+		if(clearedRois.size() == 0) {
+			IJ.log("There are no ROIs that meet criteria! " + actinFile.getName());
 			return null;
 		}
 
 		//This gives the number of frames in this particular image stack
-		int size = clearedRois[(clearedRois.length-1)].getPosition()+1;
-
-		@SuppressWarnings("unchecked")
-		ArrayList<Roi>[] roisInEachFrame = new ArrayList[size];
+		int size = clearedRois.lastFrame()+1;
 
-		for(int i = 0; i < roisInEachFrame.length; i++){   //populate ArrayList with new ArrayLists that will hold 
-			//all the ROIs of a given slice in the stack 
-			roisInEachFrame[i] = new ArrayList<Roi>();
-		}
+		int[][] roisInEachFrame = new int[size][];
+		roisInEachFrame[0] = trackFrame(clearedRois, 0, null);
 
-		for (Roi roi : clearedRois) {
-			int frame = roi.getPosition();
-			roisInEachFrame[frame].add(roi);	 
+		startTracking();
+		for(int currImg = 1; currImg < size; currImg++) {
+			roisInEachFrame[currImg] = trackFrame(clearedRois, currImg, roisInEachFrame[currImg-1]);
 		}
 
-		if(!doTracking) {
-			return roisInEachFrame;
-		} else {
-
-			for(int currImg = 1; currImg < size; currImg++) {
-				if((currImg - 1) > 0) {
-
-					ArrayList<Roi> currentRois = copy(roisInEachFrame[currImg]);
-					ArrayList<Roi> prevRois = copy(roisInEachFrame[(currImg-1)]);
-					int smallerRoiListSize = currentRois.size();
-					int largerRoiListSize = prevRois.size();
-
-					//Scenario where a certain image in the stack contains zero ROIs (filaments)
-					if(smallerRoiListSize > 0) {
-
-						//Checks if the sorted list is larger than the unsorted list
-						if(roisInEachFrame[(currImg - 1)].size() > roisInEachFrame[currImg].size()) {
-							for(int i = smallerRoiListSize; i < largerRoiListSize; i++) {
-								roisInEachFrame[currImg].add(null); //makes the unsorted list at least as large as the sorted list
-							}
-						}
-
-						//calculate the distances between each of the Rois in both images 
-						double[] minDistanceArray = minDistanceArray(prevRois, currentRois);
-
-						//sort the distance arrays in ascending fashion
-						Arrays.sort(minDistanceArray);
-
-						ArrayList<Roi> sortedRois = new ArrayList<>(); //Will hold the values of the ROIs that have already been sorted 
-
-						//track the rois across the different 
-						trackRois(sortedRois, roisInEachFrame, minDistanceArray, prevRois, currentRois, currImg);
-
-						//insert new rois that were not tracked
-						insertNewRois(sortedRois, roisInEachFrame, prevRois, currentRois, currImg);
-					}
-
-				}
-
-			}
-
-			return roisInEachFrame;
-		} 
+		return roisInEachFrame;
 	}
 
 	/**
-	 * This method calculates the distance between each roi in both the sorted list of rois and the list of rois to be sorted,
-	 * in order to track rois based on how far apart their centroids are 
-	 * @param prevRois The sorted list of rois
-	 * @param currentRois The list of rois to be sorted
-	 * @return An array that contains the euclidean distance between all possible pair of rois from the two lists passed as parameters
+	 * Creates the tracker (nearest first) or the linker (optimal linking) for a new movie
 	 */
-	private double[] minDistanceArray (ArrayList<Roi> prevRois, ArrayList<Roi> currentRois) {
-
-		int minArrayCount = 0;
-		double minDistanceArray[] = new double[prevRois.size()*currentRois.size()];
-
-		for(int i = 0; i < prevRois.size(); i++) {
-			for(int j = 0; j < currentRois.size(); j++) {
-
-				//compare centroids (euclidean distance)
-				if(prevRois.get(i) != null && currentRois.get(j) != null) {
-					double[] firstCentroidCoor = prevRois.get(i).getContourCentroid();
-					Centroid firstCentroid = new Centroid(firstCentroidCoor[0], firstCentroidCoor[1]);
-
-					double[] secondCentroidCoor = currentRois.get(j).getContourCentroid();
-					Centroid secondCentroid = new Centroid(secondCentroidCoor[0], secondCentroidCoor[1]);
-
-					double tempDistance = distance(firstCentroid, secondCentroid);
-
-					minDistanceArray[minArrayCount] = tempDistance;
-					minArrayCount++;
-				} else {
-					minDistanceArray[minArrayCount] = thresholdTracking + (1+minArrayCount); //forced to not be considered
-					minArrayCount++;
-				}
-			}	
+	private void startTracking() {
+		if(doOptimalLinking) {
+			//every frame is linked to all the filaments seen in the last gapFrames + 1 frames by a minimum cost assignment,
+			//filaments keep their slot across the frames they were missing in
+			linker = new OptimalLinker(thresholdTracking, gapFrames);
+		} else {
+			tracker = new FilamentTracker(thresholdTracking);
 		}
-
-		return minDistanceArray;
 	}
 
 	/**
-	 * This method rearranges the array of ArrayLists of rois by pairing the two rois from each of the two lists of rois
-	 * that generate the shortest distance. This ultimately sorts the unsorted list so that rois that are close to one another 
-	 * share the same position on their respective ArrayList. 
-	 * @param sortedRois An ArrayList of rois that includes all the rois that were sorted/paired with an roi from the previous frame
-	 * @param roisInEachFrame The array of ArrayLists of rois that is being organized
-	 * @param minDistanceArray An array that contains the euclidean distance between all possible pair of rois from the two lists passed as parameters
-	 * @param prevRois A copy of the ArrayList of rois from the previous frame which has already been sorted
-	 * @param currentRois A copy of the ArrayList of rois from the current frame which has not been sorted 
-	 * @param currImg The integer value that represents the current frame in the movie
+	 * Tracks the rois of one frame, frames must be given in order
+	 * @param clearedRois The store of all the rois that meet the initial requirements outlined by the method ParticleSelector 
+	 * @param currImg The frame
+	 * @param prevRois The tracked order of the previous frame
+	 * @return The indices of the rois of the frame in the store sorted correctly (tracked), -1 where a filament is missing
 	 */
-	private void trackRois (ArrayList<Roi> sortedRois, ArrayList<Roi>[] roisInEachFrame, double[] minDistanceArray, ArrayList<Roi> prevRois,
-			ArrayList<Roi> currentRois, int currImg) {
-
-		int minArrayCount = 0; //holds the position index of the array that stores all the distances between ROIs in the two consecutive lists
-
-		while(minDistanceArray[minArrayCount] < thresholdTracking && minArrayCount < minDistanceArray.length) {
-			outerloop:
-				for(int a = 0; a < prevRois.size(); a++) {
-					for(int b = 0; b < currentRois.size(); b++) {
-
-						Roi firstRoi = prevRois.get(a);
-						Roi secondRoi = currentRois.get(b);
-
-						Centroid firstCentroid;
-						Centroid secondCentroid;
-
-						double tempDistance;
-
-						if(firstRoi != null) {
-							double[] firstCentroidCoor = firstRoi.getContourCentroid();
-							firstCentroid = new Centroid(firstCentroidCoor[0], firstCentroidCoor[1]);
-
-							double[] secondCentroidCoor = secondRoi.getContourCentroid();
-							secondCentroid = new Centroid(secondCentroidCoor[0], secondCentroidCoor[1]);
-
-							tempDistance = distance(firstCentroid, secondCentroid);
-						} else {
-							break;
-						}
-
-						if (minDistanceArray[minArrayCount] == tempDistance) {
-
-							boolean included = false; //checks if the secondRoi (in the currImg) has already been paired
-							boolean included2 = false; //checks if a previous Roi (which pairs better ie smaller distance) has already been paired 
-
-							//checks to see if the secondRoi has previously been paired AND prevents the secondRoi from pairing with a 
-							//better matched pair of Rois 
-							if(sortedRois.size() > 0) {
-								for(int z = 0; z < sortedRois.size(); z++) {
-									if(secondRoi.equals(sortedRois.get(z))) {
-										included = true;
-									} 
-									if(roisInEachFrame[currImg].get(a) == null) {
-										included2 = false;
-									} else if(roisInEachFrame[currImg].get(a).equals(sortedRois.get(z))){
-										included2 = true;
-									}
-								}
-							}
-
-							if(!included) {
-								if(a == b) {
-									minArrayCount++;
-									sortedRois.add(secondRoi);
-
-									//adjusts the size of the arraylist for this particular filament if necessary
-									if(a < includedFilaments.size()) {
-										includedFilaments.set(a, (includedFilaments.get(a) + 1));
-									} else {
-										includedFilaments.add(a, 1);
-									}
-
-									break outerloop;
-								} else if(!included2) {
-									roisInEachFrame[currImg].set(a, secondRoi);
-
-									roisInEachFrame[currImg].set(b, null);
-
-									minArrayCount++;
-									sortedRois.add(secondRoi);
-
-									if(a < includedFilaments.size()) {
-										includedFilaments.set(a, (includedFilaments.get(a) + 1));
-									} else {
-										includedFilaments.add(1);
-									}
-
-									break outerloop;
-								} else {	
-									minArrayCount++;
-									break outerloop;
-								}
-							} else {
-								minArrayCount++;
-								break outerloop;
-							}
-						} 
-
-					}
-				}
+	private int[] trackFrame(RoiStore clearedRois, int currImg, int[] prevRois) {
+		//the rois of a given slice in the stack in the order they were found
+		int[] roisInFrame = new int[clearedRois.count[currImg]];
+		for(int j = 0; j < roisInFrame.length; j++) {
+			roisInFrame[j] = j;
 		}
 
-	}
-
-	/**
-	 * This method is called by the hashROIs method to insert any rois that were not matched with an roi from the previous frame 
-	 * @param sortedRois An ArrayList of rois that includes all the rois that were sorted/paired with an roi from the previous frame
-	 * @param roisInEachFrame The array of ArrayLists of rois that is being organized 
-	 * @param prevRois A copy of the ArrayList of rois from the previous frame which has already been sorted
-	 * @param currentRois A copy of the ArrayList of rois from the current frame which has not been sorted 
-	 * @param currImg The integer value that represents the current frame in the movie
-	 */
-	private void insertNewRois (ArrayList<Roi> sortedRois, ArrayList<Roi>[] roisInEachFrame, ArrayList<Roi> prevRois, ArrayList<Roi> currentRois, int currImg) {
-		for(int a = 0; a < roisInEachFrame[currImg].size(); a++) {
-			
-			//Inserts rois that were not paired during the tracking
-			if(roisInEachFrame[currImg].get(a) != null) {
-				Roi tempRoi = roisInEachFrame[currImg].get(a);
-
-				boolean included = false;
+		if(!doTracking || currImg == 0) {
+			return roisInFrame;
+		} else if(doOptimalLinking) {
+			roisInFrame = linker.link(currImg, clearedRois.x[currImg], clearedRois.y[currImg], clearedRois.count[currImg]);
 
-				for(int b = 0; b < sortedRois.size(); b++) {
-					if(sortedRois.get(b) == null) {
-						break;
-					} else {
-						if(tempRoi.equals(sortedRois.get(b))) {
-							included = true;
-							break;
-						} 
-					}
-				}
-
-				if(!included) {
-					roisInEachFrame[currImg].add(tempRoi);
-					roisInEachFrame[currImg].set(a, null);
-					sortedRois.add(tempRoi);
-				}
+			for(int i = 0; i < linker.linkCount; i++) {
+				tracks.addAppearance(linker.linkedSlots[i]);
 			}
+			report.count("links", linker.linkCount);
 
-		}
-
-		//Inserts rois that were replaced by other rois during the tracking  
-		for(int b = 0; b < currentRois.size(); b++) {
-			if(currentRois.get(b) != null) {
-
-				Roi tempRoi = currentRois.get(b);
-				boolean included = false;
-
-				for(int c = 0; c < sortedRois.size(); c++) {
-					if(sortedRois.get(c) == null) {
-						break;
+			return roisInFrame;
+		} else {
+			int currentCount = clearedRois.count[currImg];
+
+			//Scenario where a certain image in the stack contains zero ROIs (filaments)
+			if((currImg - 1) > 0 && currentCount > 0) {
+
+				//centroids of the sorted list (empty slots are NaN)
+				double[] prevX = new double[prevRois.length];
+				double[] prevY = new double[prevRois.length];
+				for(int i = 0; i < prevRois.length; i++) {
+					if(prevRois[i] != -1) {
+						prevX[i] = clearedRois.x[currImg-1][prevRois[i]];
+						prevY[i] = clearedRois.y[currImg-1][prevRois[i]];
 					} else {
-						if(tempRoi.equals(sortedRois.get(c))) {
-							included = true;
-							break;
-						} 
+						prevX[i] = Double.NaN;
+						prevY[i] = Double.NaN;
 					}
-
 				}
 
-				if(!included) {
-					roisInEachFrame[currImg].add(tempRoi);
-				}
-			}
-		}
-	}
-
-	/**
-	 * This method will sort the raw data collected after tracking method is complete to sort by filament number
-	 * @param csvFile this is the csv file that needs to be sorted by filament number
-	 * @throws IOException
-	 */
-	private void Sort (File csvFile) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(csvFile));
-		Map<Integer, List<String>> map = new TreeMap<Integer, List<String>>();
-
-		String line = reader.readLine();//read header
-		while ((line = reader.readLine()) != null) {
-			Integer key = getField(line);
-			List<String> l = map.get(key);
-			if (l == null) {
-				l = new LinkedList<String>();
-				map.put(key, l);
-			}
-			l.add(line);
+				//track the rois across the different frames, rois closer than thresholdTracking are paired nearest first
+				roisInFrame = tracker.link(prevX, prevY, prevRois.length, clearedRois.x[currImg], clearedRois.y[currImg], currentCount);
 
-		}
-		reader.close();
-
-
-		FileWriter writer = new FileWriter(newFileLocation + "\\" + actinFile.getName() + "_sorted_output.csv");
-		writer.write("FrameNo,Filament,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act,AvgRatio,"
-				+ "StandarDev,FrameNo,TotABPInten" + "," + "," +"Number of Filaments\n");
-		for (List<String> list : map.values()) {
-			for (String val : list) {
-				writer.write(val);
-				writer.write("\n");
+				//one more consecutive appearance for every filament that was continued in this frame
+				for(int i = 0; i < tracker.linkCount; i++) {
+					tracks.addAppearance(tracker.linkedSlots[i]);
+				}
+				report.count("links", tracker.linkCount);
 			}
-		}
-		writer.close();
-	}
 
-
-	private int getField(String line) {
-		String numConv = line.split(",")[1];
-		int key = Integer.parseInt(numConv);
-		return key;// extract value you want to sort on
+			return roisInFrame;
+		} 
 	}
 
 	@Override
@@ -1083,59 +1604,6 @@ public class ActinEnrichment_ implements ExtendedPlugInFilter {
 
 	}
 
-	/**
-	 * This method computes the euclidean distance between two points on a 2D image
-	 * @param first The first point 
-	 * @param second The second point
-	 * @return The distance between the two points 
-	 */
-	private double distance (Centroid first, Centroid second) {
-
-		double ycoord = Math.abs (first.y - second.y);
-		double xcoord = Math.abs (first.x - second.x);    
-		double distance = Math.sqrt(((ycoord)*(ycoord)) + ((xcoord)*(xcoord)));
-
-		return distance; 
-	}
-
-	/**
-	 * This program calculates the standard deviation of a list of ratio values
-	 * @param mean The mean of the list of ratio values
-	 * @param values The list of ratio values 
-	 * @return The single standard deviation value of the list of ratio values it was given
-	 */
-	private double StandardDev (Double mean, double[] values) {
-		double sd = 0;
-		int length = 0;
-
-		for(double num: values) {
-			if(num != 0) {
-				sd += Math.pow(num - mean, 2);
-				length++;
-			}
-		}
-
-		sd = Math.sqrt(sd/(length-1));
-
-		return sd; 
-	}
-
-	/**
-	 * Generates a copy of the Arraylist it was passed as a parameter
-	 * @param original The Arraylist of rois that needs to be copied
-	 * @return A copy of the original Arraylist of rois 
-	 */
-	private ArrayList<Roi> copy(ArrayList<Roi> original){
-
-		ArrayList<Roi> copy = new ArrayList<Roi>(original.size());
-
-		for(Roi roi: original) {
-			copy.add(roi);
-		}
-
-		return copy; 
-	}
-
 	/**
 	 * Subclass that holds the position (column and row index) of an Roi
 	 * @author santiagoespinosa
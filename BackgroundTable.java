@@ -0,0 +1,107 @@
+import ij.process.ImageProcessor;
+
+/**
+ * Summed-area tables of one frame for the background boxes: the actin and ABP intensities of the pixels that are not part of
+ * any roi (count mask equal to 0) and the number of those pixels. Once built, the background of any box is found with
+ * four lookups per table instead of a scan of all the pixels of the box.
+ * The arrays are kept between frames, so a table can be reused for all the frames of a movie (see WorkerPool).
+ */
+class BackgroundTable {
+
+	private int width;
+	private int height;
+	private double[] actin;
+	private double[] ABP;
+	private int[] count;
+
+	double actinSum;
+	double ABPSum;
+	int pixelCount;
+
+	/**
+	 * Builds the tables for a frame. Entry (x, y) holds the sum over all the pixels above and to the left of (x, y).
+	 * @param actinIp The slice of the actin channel
+	 * @param ABPIp The slice of the ABP channel
+	 * @param mask The slice of the count masks
+	 */
+	void build(ImageProcessor actinIp, ImageProcessor ABPIp, ImageProcessor mask) {
+		width = actinIp.getWidth();
+		height = actinIp.getHeight();
+		int stride = width + 1;
+		int size = stride*(height + 1);
+
+		if(actin == null || actin.length < size) {
+			actin = new double[size];
+			ABP = new double[size];
+			count = new int[size];
+		}
+
+		Object actinPixels = actinIp.getPixels();
+		Object ABPPixels = ABPIp.getPixels();
+		Object maskPixels = mask.getPixels();
+		int actinType = MeasurementKernel.typeOf(actinPixels);
+		int ABPType = MeasurementKernel.typeOf(ABPPixels);
+		int maskType = MeasurementKernel.typeOf(maskPixels);
+
+		for(int x = 0; x < stride; x++) {
+			actin[x] = 0;
+			ABP[x] = 0;
+			count[x] = 0;
+		}
+
+		for(int y = 0; y < height; y++) {
+			int above = y*stride;
+			int current = above + stride;
+			actin[current] = 0;
+			ABP[current] = 0;
+			count[current] = 0;
+
+			double actinRow = 0;
+			double ABPRow = 0;
+			int countRow = 0;
+			int i = y*width;
+			for(int x = 0; x < width; x++, i++) {
+				if(MeasurementKernel.value(maskPixels, maskType, i) == 0) {
+					actinRow += MeasurementKernel.value(actinPixels, actinType, i);
+					ABPRow += MeasurementKernel.value(ABPPixels, ABPType, i);
+					countRow++;
+				}
+				actin[current + x + 1] = actin[above + x + 1] + actinRow;
+				ABP[current + x + 1] = ABP[above + x + 1] + ABPRow;
+				count[current + x + 1] = count[above + x + 1] + countRow;
+			}
+		}
+	}
+
+	/**
+	 * Sums the background pixels of a box, giving the same values as MeasurementKernel.sumBackground
+	 * (exactly, for 8 and 16-bit images)
+	 * @param x The left edge of the box
+	 * @param y The top edge of the box
+	 * @param boxWidth The width of the box
+	 * @param boxHeight The height of the box
+	 */
+	void sumBackground(int x, int y, int boxWidth, int boxHeight) {
+		int stride = width + 1;
+		int x0 = Math.max(x, 0);
+		int y0 = Math.max(y, 0);
+		int x1 = Math.min(x + boxWidth, width);
+		int y1 = Math.min(y + boxHeight, height);
+
+		if(x1 <= x0 || y1 <= y0) {
+			actinSum = 0;
+			ABPSum = 0;
+			pixelCount = 0;
+			return;
+		}
+
+		int topLeft = y0*stride + x0;
+		int topRight = y0*stride + x1;
+		int bottomLeft = y1*stride + x0;
+		int bottomRight = y1*stride + x1;
+
+		actinSum = actin[bottomRight] - actin[topRight] - actin[bottomLeft] + actin[topLeft];
+		ABPSum = ABP[bottomRight] - ABP[topRight] - ABP[bottomLeft] + ABP[topLeft];
+		pixelCount = count[bottomRight] - count[topRight] - count[bottomLeft] + count[topLeft];
+	}
+}
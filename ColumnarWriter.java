@@ -0,0 +1,130 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a results table as a binary file with one contiguous array per column, so it can be memory mapped
+ * (e.g. numpy.memmap) and read without parsing any text. Everything is little-endian:
+ * <pre>
+ * magic "AERC", int32 version (1), int32 number of rows, int32 number of columns
+ * for each column: int32 type (0 = int32, 1 = float64) and its name in 32 bytes of ASCII padded with zeros
+ * zeros up to the next multiple of 8 bytes
+ * for each column: its values, padded with zeros up to the next multiple of 8 bytes
+ * </pre>
+ */
+class ColumnarWriter {
+
+	static final int VERSION = 1;
+	static final int INT32 = 0;
+	static final int FLOAT64 = 1;
+	private static final int NAME_LENGTH = 32;
+
+	private final File file;
+	private final int rows;
+	private final List<String> names = new ArrayList<String>();
+	private final List<Object> columns = new ArrayList<Object>();
+
+	/**
+	 * @param file The file to create
+	 * @param rows The number of rows of every column
+	 */
+	ColumnarWriter(File file, int rows) {
+		this.file = file;
+		this.rows = rows;
+	}
+
+	void addColumn(String name, int[] values) {
+		add(name, values, values.length);
+	}
+
+	void addColumn(String name, double[] values) {
+		add(name, values, values.length);
+	}
+
+	private void add(String name, Object values, int length) {
+		if(length != rows) {
+			throw new IllegalArgumentException("Column " + name + " has " + length + " values instead of " + rows);
+		}
+		if(name.length() > NAME_LENGTH) {
+			throw new IllegalArgumentException("Column name longer than " + NAME_LENGTH + " characters: " + name);
+		}
+		names.add(name);
+		columns.add(values);
+	}
+
+	/**
+	 * Writes the header and all the columns that were added
+	 * @throws IOException
+	 */
+	void write() throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.put("AERC".getBytes(StandardCharsets.US_ASCII));
+			buffer.putInt(VERSION);
+			buffer.putInt(rows);
+			buffer.putInt(columns.size());
+			for(int c = 0; c < columns.size(); c++) {
+				ensure(channel, buffer, 4 + NAME_LENGTH);
+				buffer.putInt(columns.get(c) instanceof int[] ? INT32 : FLOAT64);
+				byte[] name = names.get(c).getBytes(StandardCharsets.US_ASCII);
+				buffer.put(name);
+				buffer.put(new byte[NAME_LENGTH - name.length]);
+			}
+			long written = 16 + (long) (4 + NAME_LENGTH)*columns.size();
+			pad(channel, buffer, written);
+
+			for(Object column : columns) {
+				if(column instanceof int[]) {
+					for(int value : (int[]) column) {
+						ensure(channel, buffer, 4);
+						buffer.putInt(value);
+					}
+					pad(channel, buffer, 4L*rows);
+				} else {
+					for(double value : (double[]) column) {
+						ensure(channel, buffer, 8);
+						buffer.putDouble(value);
+					}
+				}
+			}
+
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Writes the buffer to the file when it does not have room for the next values
+	 */
+	private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if(buffer.remaining() < bytes) {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Adds the zeros that bring a section of a given length to a multiple of 8 bytes
+	 */
+	private static void pad(FileChannel channel, ByteBuffer buffer, long length) throws IOException {
+		int padding = (int) ((8 - length % 8) % 8);
+		ensure(channel, buffer, padding);
+		buffer.put(new byte[padding]);
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a csv file row by row through a buffered stream. Numbers are appended straight into a reused row buffer
+ * (StringBuilder.append gives the same text as String.valueOf) so no String is created per cell and the file is never held in memory.
+ */
+class CsvWriter {
+
+	private final Writer out;
+	private final StringBuilder row = new StringBuilder(256);
+	private boolean firstCell = true;
+
+	/**
+	 * @param file The csv file to create
+	 * @param header The column names, written as the first line
+	 * @throws IOException
+	 */
+	CsvWriter(File file, String header) throws IOException {
+		out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		out.write(header);
+		out.write('\n');
+	}
+
+	CsvWriter cell(int value) {
+		separate();
+		row.append(value);
+		return this;
+	}
+
+	CsvWriter cell(double value) {
+		separate();
+		row.append(value);
+		return this;
+	}
+
+	/**
+	 * Adds an empty cell
+	 */
+	CsvWriter empty() {
+		separate();
+		return this;
+	}
+
+	/**
+	 * Ends the current row and writes it to the file
+	 * @throws IOException
+	 */
+	void endRow() throws IOException {
+		row.append('\n');
+		out.append(row);
+		row.setLength(0);
+		firstCell = true;
+	}
+
+	/**
+	 * Pushes the rows written so far to the file, so they can be read while the file is still being written
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	void close() throws IOException {
+		out.close();
+	}
+
+	private void separate() {
+		if(!firstCell) {
+			row.append(',');
+		}
+		firstCell = false;
+	}
+}
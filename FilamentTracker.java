@@ -0,0 +1,242 @@
+import java.util.Arrays;
+
+/**
+ * Links the rois of a frame to the filaments tracked up to the previous frame.
+ * The centroids of the current frame are put in a uniform grid with cells at least as large as the tracking distance, so for each
+ * filament only the rois in the 3x3 cells around it are considered instead of every pair of rois of the two frames.
+ * The candidate links are then accepted greedily, nearest first, with the same rules (and so the same assignments)
+ * as the original all-pairs tracking in hashROIs/trackRois/insertNewRois.
+ */
+class FilamentTracker {
+
+	private final double maxDistance;
+
+	//the previous slot of every accepted link, in the order they were accepted (a slot can be linked more than once)
+	int[] linkedSlots = new int[16];
+	int linkCount;
+
+	//candidate links of the last frame
+	double[] pairDistance = new double[64];
+	int[] pairPrev = new int[64];
+	int[] pairCurrent = new int[64];
+	int pairCount;
+	private int[] order = new int[64];
+	private int[] buffer = new int[64];
+
+	/**
+	 * @param maxDistance Rois are only linked if their centroids are closer than this distance (thresholdTracking)
+	 */
+	FilamentTracker(double maxDistance) {
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * Computes the order of the rois of the current frame, so that a roi linked to the filament in slot a of the previous frame
+	 * ends up in slot a too. Rois that are not linked are placed after all the slots of the previous frame.
+	 * @param prevX The x centroids of the slots of the previous frame (NaN for empty slots)
+	 * @param prevY The y centroids of the slots of the previous frame (NaN for empty slots)
+	 * @param prevCount The number of slots of the previous frame
+	 * @param currentX The x centroids of the rois of the current frame, in the order they were found
+	 * @param currentY The y centroids of the rois of the current frame, in the order they were found
+	 * @param currentCount The number of rois of the current frame
+	 * @return For each slot of the current frame, the index of the roi it holds or -1 if it is empty
+	 */
+	int[] link(double[] prevX, double[] prevY, int prevCount, double[] currentX, double[] currentY, int currentCount) {
+		linkCount = 0;
+		findCandidates(prevX, prevY, prevCount, currentX, currentY, currentCount);
+		sortCandidates();
+
+		//the slots start with the rois in the order they were found, padded to the size of the previous frame
+		int size = Math.max(prevCount, currentCount);
+		int[] slots = new int[size + currentCount];
+		for(int i = 0; i < size; i++) {
+			slots[i] = i < currentCount ? i : -1;
+		}
+		boolean[] sorted = new boolean[currentCount]; //the rois that are already in their final slot
+
+		//accept the links nearest first. Only the first pair (in previous/current order) of a given distance is considered,
+		//other pairs with exactly the same distance are skipped
+		double lastDistance = Double.NaN;
+		for(int k = 0; k < pairCount; k++) {
+			int pair = order[k];
+			if(pairDistance[pair] == lastDistance) {
+				continue;
+			}
+			lastDistance = pairDistance[pair];
+
+			int a = pairPrev[pair];
+			int b = pairCurrent[pair];
+
+			if(sorted[b]) {
+				continue; //this roi was already paired with a better match
+			}
+
+			if(a == b) {
+				sorted[b] = true;
+				addLink(a);
+			} else if(slots[a] == -1 || !sorted[slots[a]]) {
+				//move the roi to the slot of the filament it continues, freeing its own slot
+				slots[a] = b;
+				slots[b] = -1;
+				sorted[b] = true;
+				addLink(a);
+			}
+		}
+
+		//rois that were not linked, either still in their original slot or pushed out of it, go at the end
+		int padded = size;
+		for(int a = 0; a < padded; a++) {
+			if(slots[a] != -1 && !sorted[slots[a]]) {
+				slots[size++] = slots[a];
+				sorted[slots[a]] = true;
+				slots[a] = -1;
+			}
+		}
+		for(int b = 0; b < currentCount; b++) {
+			if(!sorted[b]) {
+				slots[size++] = b;
+			}
+		}
+
+		return size == slots.length ? slots : Arrays.copyOf(slots, size);
+	}
+
+	/**
+	 * Collects all the pairs of a filament of the previous frame and a roi of the current frame closer than maxDistance
+	 * into pairDistance, pairPrev and pairCurrent
+	 */
+	void findCandidates(double[] prevX, double[] prevY, int prevCount, double[] currentX, double[] currentY, int currentCount) {
+		pairCount = 0;
+		if(prevCount == 0 || currentCount == 0 || !(maxDistance > 0)) {
+			return;
+		}
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for(int b = 0; b < currentCount; b++) {
+			minX = Math.min(minX, currentX[b]);
+			minY = Math.min(minY, currentY[b]);
+			maxX = Math.max(maxX, currentX[b]);
+			maxY = Math.max(maxY, currentY[b]);
+		}
+
+		//bucket the current centroids in cells of at least maxDistance x maxDistance (counting sort into cellStart/cellItems),
+		//cells are never smaller than 1/512 of the field so tiny tracking distances do not make a huge grid
+		double cellSize = Math.max(maxDistance, Math.max(maxX - minX, maxY - minY)/512);
+		int columns = (int) ((maxX - minX)/cellSize) + 1;
+		int rows = (int) ((maxY - minY)/cellSize) + 1;
+		int[] cellStart = new int[columns*rows + 1];
+		int[] cellOf = new int[currentCount];
+		for(int b = 0; b < currentCount; b++) {
+			cellOf[b] = (int) ((currentY[b] - minY)/cellSize)*columns + (int) ((currentX[b] - minX)/cellSize);
+			cellStart[cellOf[b] + 1]++;
+		}
+		for(int c = 0; c < columns*rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] cellItems = new int[currentCount];
+		int[] fill = Arrays.copyOf(cellStart, columns*rows);
+		for(int b = 0; b < currentCount; b++) {
+			cellItems[fill[cellOf[b]]++] = b;
+		}
+
+		for(int a = 0; a < prevCount; a++) {
+			if(Double.isNaN(prevX[a])) {
+				continue;
+			}
+
+			int column = (int) Math.floor((prevX[a] - minX)/cellSize);
+			int row = (int) Math.floor((prevY[a] - minY)/cellSize);
+			for(int r = Math.max(row - 1, 0); r <= Math.min(row + 1, rows - 1); r++) {
+				for(int c = Math.max(column - 1, 0); c <= Math.min(column + 1, columns - 1); c++) {
+					int cell = r*columns + c;
+					for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+						int b = cellItems[i];
+						double distance = distance(prevX[a], prevY[a], currentX[b], currentY[b]);
+						if(distance < maxDistance) {
+							addCandidate(distance, a, b);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method computes the euclidean distance between two centroids
+	 */
+	static double distance(double x1, double y1, double x2, double y2) {
+		double ycoord = Math.abs (y1 - y2);
+		double xcoord = Math.abs (x1 - x2);
+		return Math.sqrt(((ycoord)*(ycoord)) + ((xcoord)*(xcoord)));
+	}
+
+	private void addCandidate(double distance, int a, int b) {
+		if(pairCount == pairDistance.length) {
+			int capacity = pairCount*2;
+			pairDistance = Arrays.copyOf(pairDistance, capacity);
+			pairPrev = Arrays.copyOf(pairPrev, capacity);
+			pairCurrent = Arrays.copyOf(pairCurrent, capacity);
+			order = new int[capacity];
+			buffer = new int[capacity];
+		}
+		pairDistance[pairCount] = distance;
+		pairPrev[pairCount] = a;
+		pairCurrent[pairCount] = b;
+		pairCount++;
+	}
+
+	private void addLink(int slot) {
+		if(linkCount == linkedSlots.length) {
+			linkedSlots = Arrays.copyOf(linkedSlots, linkCount*2);
+		}
+		linkedSlots[linkCount++] = slot;
+	}
+
+	/**
+	 * Sorts the candidates by distance, then by previous slot and then by current roi (bottom-up merge sort of the indices)
+	 */
+	private void sortCandidates() {
+		for(int i = 0; i < pairCount; i++) {
+			order[i] = i;
+		}
+
+		int[] from = order;
+		int[] to = buffer;
+		for(int width = 1; width < pairCount; width *= 2) {
+			for(int start = 0; start < pairCount; start += 2*width) {
+				int middle = Math.min(start + width, pairCount);
+				int end = Math.min(start + 2*width, pairCount);
+				int i = start;
+				int j = middle;
+				for(int k = start; k < end; k++) {
+					if(i < middle && (j >= end || compare(from[i], from[j]) <= 0)) {
+						to[k] = from[i++];
+					} else {
+						to[k] = from[j++];
+					}
+				}
+			}
+			int[] swap = from;
+			from = to;
+			to = swap;
+		}
+
+		if(from != order) {
+			System.arraycopy(from, 0, order, 0, pairCount);
+		}
+	}
+
+	private int compare(int first, int second) {
+		int byDistance = Double.compare(pairDistance[first], pairDistance[second]);
+		if(byDistance != 0) {
+			return byDistance;
+		}
+		if(pairPrev[first] != pairPrev[second]) {
+			return pairPrev[first] < pairPrev[second] ? -1 : 1;
+		}
+		return pairCurrent[first] < pairCurrent[second] ? -1 : (pairCurrent[first] == pairCurrent[second] ? 0 : 1);
+	}
+}
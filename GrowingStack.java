@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+
+/**
+ * A movie that is still being acquired: either a TIFF file the acquisition software appends frames to, or a folder it writes
+ * one TIFF per frame into (frames are ordered by file name). available() is polled to find out how many frames are complete on disk,
+ * a frame is only reported once all of its pixels have been written, so the frames it reports can be read right away.
+ * The file (or folder) does not have to exist yet when the acquisition has not started.
+ */
+class GrowingStack {
+
+	private final File source;
+	private long knownLength = -1; //length of the file when its frames were last counted
+	private FileInfo[] frames = new FileInfo[0]; //the complete frames of a growing file
+	private File[] frameFiles = new File[0]; //the complete frames of a folder
+	private long[] lengths = new long[0]; //length of the folder files at the previous poll
+
+	/**
+	 * @param source The growing TIFF file or the folder of per frame TIFF files
+	 */
+	GrowingStack(File source) {
+		this.source = source;
+	}
+
+	/**
+	 * Checks the file or folder for new frames
+	 * @return The number of frames that are completely written, it never decreases
+	 */
+	int available() {
+		if(source.isDirectory()) {
+			return pollFolder();
+		} else if(source.isFile()) {
+			return pollFile();
+		}
+		return 0;
+	}
+
+	/**
+	 * @param n The frame, starting at 1, that available() has reported
+	 * @return The frame as a single image with the calibration of the movie, null when it cannot be decoded (yet)
+	 */
+	ImagePlus frame(int n) {
+		FileInfo frame;
+		if(source.isDirectory()) {
+			//decoded like the frames of a growing file rather than with IJ.openImage, which logs an error at every poll
+			//while the file is not a readable TIFF
+			File file = frameFiles[n - 1];
+			try {
+				FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+				if(info == null || info.length == 0) {
+					return null;
+				}
+				frame = info[0];
+			} catch (IOException | RuntimeException e) {
+				return null;
+			}
+		} else {
+			frame = frames[n - 1];
+		}
+		return new FileOpener(frame).openImage();
+	}
+
+	/**
+	 * A frame file is complete when its length did not change since the previous poll. Only the files up to the first
+	 * incomplete one are frames, so the frame numbers never change.
+	 */
+	private int pollFolder() {
+		File[] files = source.listFiles((dir, name) -> name.endsWith(".tif") || name.endsWith(".tiff"));
+		if(files == null) {
+			return frameFiles.length;
+		}
+		Arrays.sort(files);
+
+		long[] current = new long[files.length];
+		int complete = 0;
+		boolean stable = true;
+		for(int i = 0; i < files.length; i++) {
+			current[i] = files[i].length();
+			if(stable && i < lengths.length && current[i] > 0 && current[i] == lengths[i]) {
+				complete = i + 1;
+			} else {
+				stable = false;
+			}
+		}
+		lengths = current;
+
+		if(complete > frameFiles.length) {
+			frameFiles = Arrays.copyOf(files, complete);
+		}
+		return frameFiles.length;
+	}
+
+	/**
+	 * Decodes the image file directories of the file again when it grew and keeps the frames whose pixels end within the file.
+	 * A directory that is only partly written makes the decoder fail, the frames are then counted again at the next poll.
+	 */
+	private int pollFile() {
+		long length = source.length();
+		if(length == knownLength) {
+			return frames.length;
+		}
+
+		FileInfo[] info;
+		try {
+			info = new TiffDecoder(source.getParent() + File.separator, source.getName()).getTiffInfo();
+		} catch (IOException | RuntimeException e) {
+			return frames.length;
+		}
+		if(info == null) {
+			return frames.length;
+		}
+		knownLength = length;
+
+		FileInfo[] complete;
+		if(info.length == 1 && info[0].nImages > 1) {
+			//contiguous stack (ImageJ), the frames follow each other after the first offset
+			FileInfo first = info[0];
+			long size = (long) first.width*first.height*first.getBytesPerPixel();
+			int count = (int) Math.min(first.nImages, (length - first.getOffset() + first.gapBetweenImages)/(size + first.gapBetweenImages));
+			complete = new FileInfo[Math.max(count, 0)];
+			for(int i = 0; i < complete.length; i++) {
+				complete[i] = (FileInfo) first.clone();
+				complete[i].nImages = 1;
+				complete[i].longOffset = first.getOffset() + i*(size + first.gapBetweenImages);
+			}
+		} else {
+			int count = 0;
+			while(count < info.length && end(info[count]) <= length) {
+				count++;
+			}
+			complete = Arrays.copyOf(info, count);
+		}
+
+		if(complete.length > frames.length) {
+			frames = complete;
+		}
+		return frames.length;
+	}
+
+	/**
+	 * @return The position in the file just after the last pixel of a frame
+	 */
+	private static long end(FileInfo fi) {
+		if(fi.stripOffsets != null && fi.stripLengths != null) {
+			long end = 0;
+			for(int s = 0; s < fi.stripOffsets.length; s++) {
+				end = Math.max(end, (fi.stripOffsets[s] & 0xffffffffL) + fi.stripLengths[s]);
+			}
+			return end;
+		}
+		return fi.getOffset() + (long) fi.width*fi.height*fi.getBytesPerPixel();
+	}
+}
@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Holds the count masks of all the frames of a movie (background pixels are 0). The masks are either kept on the heap
+ * or, for movies larger than the heap, written to a temporary file that is memory mapped one frame at a time, so a frame only
+ * takes heap space while it is being measured.
+ */
+class MaskStore {
+
+	private final int width;
+	private final int height;
+	private final ImageProcessor[] masks;
+	private final File file;
+	private final FileChannel channel;
+
+	/**
+	 * @param width The width of the frames
+	 * @param height The height of the frames
+	 * @param frames The number of frames
+	 * @param mapped True to keep the masks in a memory mapped temporary file instead of the heap
+	 * @throws IOException If the temporary file cannot be created
+	 */
+	MaskStore(int width, int height, int frames, boolean mapped) throws IOException {
+		this.width = width;
+		this.height = height;
+		if(mapped) {
+			masks = null;
+			file = File.createTempFile("ActinEnrichment-masks", ".raw");
+			file.deleteOnExit();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(2L*width*height*frames);
+			channel = raf.getChannel();
+		} else {
+			masks = new ImageProcessor[frames];
+			file = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Stores the count masks of a frame
+	 * @param slice The frame (starting at 1)
+	 * @param mask The 16-bit count masks of the frame
+	 */
+	void set(int slice, ImageProcessor mask) {
+		if(masks != null) {
+			masks[slice - 1] = mask;
+			return;
+		}
+		map(slice).put((short[]) mask.getPixels());
+	}
+
+	/**
+	 * @param slice The frame (starting at 1)
+	 * @return The count masks of the frame
+	 */
+	ImageProcessor get(int slice) {
+		if(masks != null) {
+			return masks[slice - 1];
+		}
+		short[] pixels = new short[width*height];
+		map(slice).get(pixels);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Deletes the temporary file of a memory mapped store
+	 */
+	void close() {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+
+	private ShortBuffer map(int slice) {
+		long frameBytes = 2L*width*height;
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, (slice - 1)*frameBytes, frameBytes);
+			return buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map the count masks of frame " + slice, e);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+import ij.process.ImageProcessor;
+
+/**
+ * Sums the actin and ABP intensities of one frame directly from the pixel arrays of the slices.
+ * This gives the same sums as going through Roi.getContainedPoints() and ImageProcessor.get(x,y) for every pixel,
+ * without creating a Point for each pixel of every roi and background box. The rois are measured from their spans (see Particle).
+ * The sums of the last call are left in actinSum, ABPSum and pixelCount, so a single kernel can be reused for all the rois of a frame.
+ * The 16-bit movies with 16-bit count masks are summed by loops over the short arrays with integer accumulators,
+ * the other pixel types go through value().
+ */
+class MeasurementKernel {
+
+	private static final int BYTE = 0;
+	private static final int SHORT = 1;
+	private static final int FLOAT = 2;
+	private static final int RGB = 3;
+
+	private final int width;
+	private final int height;
+
+	private final Object actinPixels;
+	private final Object ABPPixels;
+	private final Object maskPixels;
+	private final int actinType;
+	private final int ABPType;
+	private final int maskType;
+
+	//the pixel arrays when the channels (and the count masks) are 16-bit, null otherwise
+	private final short[] actinShorts;
+	private final short[] ABPShorts;
+	private final short[] maskShorts;
+
+	double actinSum;
+	double ABPSum;
+	int pixelCount;
+
+	/**
+	 * @param actin The slice of the actin channel
+	 * @param ABP The slice of the ABP channel
+	 * @param mask The slice of the count masks, background pixels are the ones equal to 0 (can be null if only rois are measured)
+	 */
+	MeasurementKernel(ImageProcessor actin, ImageProcessor ABP, ImageProcessor mask) {
+		width = actin.getWidth();
+		height = actin.getHeight();
+
+		actinPixels = actin.getPixels();
+		ABPPixels = ABP.getPixels();
+		maskPixels = mask != null ? mask.getPixels() : null;
+		actinType = typeOf(actinPixels);
+		ABPType = typeOf(ABPPixels);
+		maskType = typeOf(maskPixels);
+
+		boolean shorts = actinType == SHORT && ABPType == SHORT;
+		actinShorts = shorts ? (short[]) actinPixels : null;
+		ABPShorts = shorts ? (short[]) ABPPixels : null;
+		maskShorts = shorts && maskType == SHORT ? (short[]) maskPixels : null;
+	}
+
+	/**
+	 * Sums the intensities of the pixels of the spans of a particle, the pixels Roi.getContainedPoints() would give for its traced roi
+	 * @param spans The row, first x and last x + 1 of every span
+	 */
+	void sumSpans(int[] spans) {
+		if(actinShorts != null) {
+			sumSpansShort(spans);
+			return;
+		}
+
+		double actin = 0;
+		double ABP = 0;
+		int count = 0;
+
+		for(int s = 0; s < spans.length; s += 3) {
+			int row = spans[s]*width;
+			for(int i = row + spans[s + 1]; i < row + spans[s + 2]; i++) {
+				actin += value(actinPixels, actinType, i);
+				ABP += value(ABPPixels, ABPType, i);
+			}
+			count += spans[s + 2] - spans[s + 1];
+		}
+
+		actinSum = actin;
+		ABPSum = ABP;
+		pixelCount = count;
+	}
+
+	/**
+	 * Sums the intensities of the pixels of a rectangular background box that are not part of any roi (count mask equal to 0)
+	 * @param x The left edge of the box
+	 * @param y The top edge of the box
+	 * @param boxWidth The width of the box
+	 * @param boxHeight The height of the box
+	 */
+	void sumBackground(int x, int y, int boxWidth, int boxHeight) {
+		//clip the box to the image, the pixels outside of it do not exist
+		int xStart = Math.max(x, 0);
+		int yStart = Math.max(y, 0);
+		int xEnd = Math.min(x + boxWidth, width);
+		int yEnd = Math.min(y + boxHeight, height);
+		if(maskShorts != null) {
+			sumBackgroundShort(xStart, yStart, xEnd, yEnd);
+			return;
+		}
+
+		double actin = 0;
+		double ABP = 0;
+		int count = 0;
+
+		for(int line = yStart; line < yEnd; line++) {
+			int row = line*width;
+			for(int i = row + xStart; i < row + xEnd; i++) {
+				if(value(maskPixels, maskType, i) == 0) {
+					actin += value(actinPixels, actinType, i);
+					ABP += value(ABPPixels, ABPType, i);
+					count++;
+				}
+			}
+		}
+
+		actinSum = actin;
+		ABPSum = ABP;
+		pixelCount = count;
+	}
+
+	/**
+	 * sumSpans for 16-bit channels. The sums are exact integers, so they are the same as the double sums of the generic path.
+	 */
+	private void sumSpansShort(int[] spans) {
+		short[] actinPixels = actinShorts;
+		short[] ABPPixels = ABPShorts;
+		long actin = 0;
+		long ABP = 0;
+		int count = 0;
+
+		for(int s = 0; s < spans.length; s += 3) {
+			int row = spans[s]*width;
+			int end = row + spans[s + 2];
+			for(int i = row + spans[s + 1]; i < end; i++) {
+				actin += actinPixels[i] & 0xffff;
+				ABP += ABPPixels[i] & 0xffff;
+			}
+			count += spans[s + 2] - spans[s + 1];
+		}
+
+		actinSum = actin;
+		ABPSum = ABP;
+		pixelCount = count;
+	}
+
+	/**
+	 * sumBackground for 16-bit channels and count masks, on the box already clipped to the image
+	 */
+	private void sumBackgroundShort(int xStart, int yStart, int xEnd, int yEnd) {
+		short[] actinPixels = actinShorts;
+		short[] ABPPixels = ABPShorts;
+		short[] maskPixels = maskShorts;
+		long actin = 0;
+		long ABP = 0;
+		int count = 0;
+
+		for(int line = yStart; line < yEnd; line++) {
+			int row = line*width;
+			int end = row + xEnd;
+			for(int i = row + xStart; i < end; i++) {
+				if(maskPixels[i] == 0) {
+					actin += actinPixels[i] & 0xffff;
+					ABP += ABPPixels[i] & 0xffff;
+					count++;
+				}
+			}
+		}
+
+		actinSum = actin;
+		ABPSum = ABP;
+		pixelCount = count;
+	}
+
+	static int typeOf(Object pixels) {
+		if(pixels instanceof short[]) {
+			return SHORT;
+		} else if(pixels instanceof float[]) {
+			return FLOAT;
+		} else if(pixels instanceof int[]) {
+			return RGB;
+		} else {
+			return BYTE;
+		}
+	}
+
+	/**
+	 * The value of a pixel as an unsigned integer (8 and 16-bit) or as the float value (32-bit)
+	 */
+	static double value(Object pixels, int type, int i) {
+		switch(type) {
+			case SHORT:
+				return ((short[]) pixels)[i] & 0xffff;
+			case FLOAT:
+				return ((float[]) pixels)[i];
+			case RGB:
+				return ((int[]) pixels)[i] & 0xffffff;
+			default:
+				return ((byte[]) pixels)[i] & 0xff;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Runs several movies through the plugin at the same time on a fixed number of threads.
+ * Every movie gets its own ActinEnrichment_ instance (its job context), which holds all the images, rois and
+ * per filament lists of that movie, so jobs running side by side never share any state.
+ */
+public class MovieScheduler {
+
+	private final ExecutorService pool;
+	private final List<Future<Boolean>> jobs = new ArrayList<Future<Boolean>>();
+
+	/**
+	 * @param threads The maximum number of movies processed at the same time
+	 */
+	public MovieScheduler(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "ActinEnrichment movie " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Creates the job context for one movie from the options shared by all the movies of a batch
+	 * @param options The macro style options string with the parameters (see ActinEnrichment_.readOptions)
+	 * @param actinFile The actin stack of this movie
+	 * @param ABPFile The ABP stack of this movie
+	 * @param output The folder the results of this movie will be written to
+	 * @return The plugin instance that will process this movie
+	 */
+	public static ActinEnrichment_ createJob(String options, File actinFile, File ABPFile, String output) {
+		ActinEnrichment_ job = new ActinEnrichment_();
+		job.headless = true;
+		job.readOptions(options);
+		job.actinFile = actinFile;
+		job.ABPFile = ABPFile;
+		job.newFileLocation = new File(output).getAbsolutePath() + File.separator;
+		return job;
+	}
+
+	/**
+	 * Queues a movie, it starts as soon as one of the threads is free
+	 * @param job The job context of the movie, it must not be shared with any other job
+	 */
+	public void submit(final ActinEnrichment_ job) {
+		jobs.add(pool.submit(() -> {
+			//a bad movie should not stop the rest of the batch from being processed,
+			//the plugin throws an UncheckedIOException when a stack or a result file cannot be read or written
+			try {
+				job.run(null);
+				return true;
+			} catch (Throwable e) {
+				IJ.log("Failed to process " + job.actinFile.getName() + ": " + e);
+				e.printStackTrace();
+				return false;
+			}
+		}));
+	}
+
+	/**
+	 * Waits for all the queued movies to finish and stops the threads
+	 * @return The number of movies that were processed successfully
+	 */
+	public int awaitCompletion() {
+		int processed = 0;
+		try {
+			//every movie is waited for, one that failed does not stop the others from being counted
+			for(Future<Boolean> job : jobs) {
+				try {
+					if(job.get()) {
+						processed++;
+					}
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+			pool.shutdown();
+		} catch (InterruptedException e) {
+			//the movies still running are stopped
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return processed;
+	}
+}
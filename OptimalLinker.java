@@ -0,0 +1,449 @@
+import java.util.Arrays;
+
+/**
+ * Links the rois of each frame to the filaments tracked so far with a minimum cost assignment instead of nearest first.
+ * A link between a filament and a roi closer than maxDistance costs (distance - maxDistance), so the chosen links are the set
+ * that together saves the most distance, e.g. two filaments passing close to each other are not swapped because one of the pairs
+ * happens to be slightly closer.
+ * Filaments that were not found in up to maxGap frames are still candidates (gap closing), so a filament that blinks out
+ * keeps its slot instead of being split into two shorter tracks. Slots are never reused, a new filament always gets a new slot.
+ * The candidate links are found with the grid of FilamentTracker and the assignment is solved separately for every group of
+ * filaments and rois that share a candidate link, which keeps it fast for thousands of rois per frame.
+ */
+class OptimalLinker {
+
+	private final double maxDistance;
+	private final int maxGap;
+	private final FilamentTracker candidates;
+
+	//last known centroid and frame of every slot
+	private double[] slotX = new double[64];
+	private double[] slotY = new double[64];
+	private int[] slotFrame = new int[64];
+	private int slotCount;
+
+	//the slots that can still be linked (seen in the last maxGap + 1 frames)
+	private int[] active = new int[64];
+	private int activeCount;
+
+	//the slot of every accepted link of the last frame
+	int[] linkedSlots = new int[16];
+	int linkCount;
+
+	/**
+	 * @param maxDistance Rois are only linked if their centroids are closer than this distance (thresholdTracking)
+	 * @param maxGap The number of consecutive frames a filament can be missing and still be linked
+	 */
+	OptimalLinker(double maxDistance, int maxGap) {
+		this.maxDistance = maxDistance;
+		this.maxGap = Math.max(maxGap, 0);
+		candidates = new FilamentTracker(maxDistance);
+	}
+
+	/**
+	 * Assigns the rois of a frame to slots. Frames have to be given in increasing order.
+	 * @param frame The frame the rois were found in
+	 * @param currentX The x centroids of the rois of the frame, in the order they were found
+	 * @param currentY The y centroids of the rois of the frame, in the order they were found
+	 * @param currentCount The number of rois of the frame
+	 * @return For each slot up to the highest one used in this frame, the index of the roi it holds or -1 if it is empty
+	 */
+	int[] link(int frame, double[] currentX, double[] currentY, int currentCount) {
+		linkCount = 0;
+
+		//drop the filaments that have been missing for too long
+		int kept = 0;
+		for(int i = 0; i < activeCount; i++) {
+			if(frame - slotFrame[active[i]] - 1 <= maxGap) {
+				active[kept++] = active[i];
+			}
+		}
+		activeCount = kept;
+
+		double[] prevX = new double[activeCount];
+		double[] prevY = new double[activeCount];
+		for(int i = 0; i < activeCount; i++) {
+			prevX[i] = slotX[active[i]];
+			prevY[i] = slotY[active[i]];
+		}
+		candidates.findCandidates(prevX, prevY, activeCount, currentX, currentY, currentCount);
+
+		int[] slotOf = new int[currentCount];
+		Arrays.fill(slotOf, -1);
+		assign(activeCount, currentCount, slotOf);
+
+		//rois that were not linked start new filaments
+		int highest = -1;
+		for(int b = 0; b < currentCount; b++) {
+			if(slotOf[b] == -1) {
+				slotOf[b] = newSlot();
+				addActive(slotOf[b]);
+			} else {
+				addLink(slotOf[b]);
+			}
+			slotX[slotOf[b]] = currentX[b];
+			slotY[slotOf[b]] = currentY[b];
+			slotFrame[slotOf[b]] = frame;
+			highest = Math.max(highest, slotOf[b]);
+		}
+
+		int[] slots = new int[highest + 1];
+		Arrays.fill(slots, -1);
+		for(int b = 0; b < currentCount; b++) {
+			slots[slotOf[b]] = b;
+		}
+		return slots;
+	}
+
+	/**
+	 * Splits the candidate links into connected groups and solves the assignment of each group
+	 * @param prevCount The number of active filaments
+	 * @param currentCount The number of rois of the frame
+	 * @param slotOf Filled with the slot each roi is linked to
+	 */
+	private void assign(int prevCount, int currentCount, int[] slotOf) {
+		int pairs = candidates.pairCount;
+		if(pairs == 0) {
+			return;
+		}
+
+		//union-find over the filaments (0 to prevCount-1) and the rois (prevCount onwards)
+		int[] parent = new int[prevCount + currentCount];
+		for(int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		for(int e = 0; e < pairs; e++) {
+			int a = find(parent, candidates.pairPrev[e]);
+			int b = find(parent, prevCount + candidates.pairCurrent[e]);
+			if(a != b) {
+				parent[Math.max(a, b)] = Math.min(a, b);
+			}
+		}
+
+		//group the links by component (counting sort on the root of the filament of each link)
+		int[] groupStart = new int[parent.length + 1];
+		int[] root = new int[pairs];
+		for(int e = 0; e < pairs; e++) {
+			root[e] = find(parent, candidates.pairPrev[e]);
+			groupStart[root[e] + 1]++;
+		}
+		for(int i = 0; i < parent.length; i++) {
+			groupStart[i + 1] += groupStart[i];
+		}
+		int[] grouped = new int[pairs];
+		int[] fill = Arrays.copyOf(groupStart, parent.length);
+		for(int e = 0; e < pairs; e++) {
+			grouped[fill[root[e]]++] = e;
+		}
+
+		AssignmentProblem problem = new AssignmentProblem();
+		for(int g = 0; g < parent.length; g++) {
+			int start = groupStart[g];
+			int end = groupStart[g + 1];
+			if(end == start) {
+				continue;
+			}
+
+			if(end - start == 1) {
+				//a single candidate always pays off, its cost is negative
+				int e = grouped[start];
+				slotOf[candidates.pairCurrent[e]] = active[candidates.pairPrev[e]];
+				continue;
+			}
+
+			problem.solve(candidates, prevCount, currentCount, grouped, start, end, maxDistance);
+			for(int k = start; k < end; k++) {
+				int e = grouped[k];
+				if(problem.isMatched(e)) {
+					slotOf[candidates.pairCurrent[e]] = active[candidates.pairPrev[e]];
+				}
+			}
+		}
+	}
+
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private int newSlot() {
+		if(slotCount == slotX.length) {
+			slotX = Arrays.copyOf(slotX, slotCount*2);
+			slotY = Arrays.copyOf(slotY, slotCount*2);
+			slotFrame = Arrays.copyOf(slotFrame, slotCount*2);
+		}
+		return slotCount++;
+	}
+
+	private void addActive(int slot) {
+		if(activeCount == active.length) {
+			active = Arrays.copyOf(active, activeCount*2);
+		}
+		active[activeCount++] = slot;
+	}
+
+	private void addLink(int slot) {
+		if(linkCount == linkedSlots.length) {
+			linkedSlots = Arrays.copyOf(linkedSlots, linkCount*2);
+		}
+		linkedSlots[linkCount++] = slot;
+	}
+
+	/**
+	 * Minimum cost bipartite matching of one group of candidate links, by successive shortest augmenting paths (Dijkstra with
+	 * potentials). Every link costs (distance - maxDistance) < 0 and paths are augmented only while they lower the total cost,
+	 * so the result is the cheapest matching of any size, not necessarily the largest one.
+	 */
+	private static class AssignmentProblem {
+
+		private int left; //number of filaments of the group
+		private int right; //number of rois of the group
+
+		//index of a filament/roi within the group, -1 when it is not part of it
+		private int[] leftIndex = new int[0];
+		private int[] rightIndex = new int[0];
+
+		//links of the group, listed by filament
+		private int[] edgeStart = new int[17];
+		private int[] edgeLeft = new int[16];
+		private int[] edgeRight = new int[16];
+		private double[] edgeCost = new double[16];
+		private int[] edgePair = new int[16];
+
+		private int[] matchLeft = new int[16]; //link used by a filament, -1 if free
+		private int[] matchRight = new int[16]; //link used by a roi, -1 if free
+		private boolean[] matchedPair = new boolean[16];
+
+		//filaments, then rois and then the sink
+		private double[] potential = new double[33];
+		private double[] dist = new double[33];
+		private int[] via = new int[33]; //link that reached a node on the shortest path tree, -1 for free filaments
+		private boolean[] done = new boolean[33];
+		private int[] heapNode = new int[64];
+		private double[] heapKey = new double[64];
+		private int heapSize;
+
+		/**
+		 * Solves the assignment of the links grouped[start] to grouped[end-1], the result is read with isMatched
+		 */
+		void solve(FilamentTracker candidates, int prevCount, int currentCount, int[] grouped, int start, int end, double maxDistance) {
+			int edges = end - start;
+			if(matchedPair.length < candidates.pairCount) {
+				matchedPair = new boolean[candidates.pairCount];
+			}
+			if(leftIndex.length < prevCount) {
+				leftIndex = new int[prevCount];
+				Arrays.fill(leftIndex, -1);
+			}
+			if(rightIndex.length < currentCount) {
+				rightIndex = new int[currentCount];
+				Arrays.fill(rightIndex, -1);
+			}
+			if(edgeLeft.length < edges) {
+				edgeLeft = new int[edges];
+				edgeRight = new int[edges];
+				edgeCost = new double[edges];
+				edgePair = new int[edges];
+				edgeStart = new int[edges + 1];
+				matchLeft = new int[edges];
+				matchRight = new int[edges];
+			}
+			int[] leftOf = new int[edges];
+			int[] rightOf = new int[edges];
+
+			//number the filaments and rois of the group
+			left = 0;
+			right = 0;
+			for(int k = 0; k < edges; k++) {
+				int e = grouped[start + k];
+				matchedPair[e] = false;
+				if(leftIndex[candidates.pairPrev[e]] == -1) {
+					leftIndex[candidates.pairPrev[e]] = left++;
+				}
+				if(rightIndex[candidates.pairCurrent[e]] == -1) {
+					rightIndex[candidates.pairCurrent[e]] = right++;
+				}
+				leftOf[k] = leftIndex[candidates.pairPrev[e]];
+				rightOf[k] = rightIndex[candidates.pairCurrent[e]];
+			}
+			for(int k = 0; k < edges; k++) {
+				int e = grouped[start + k];
+				leftIndex[candidates.pairPrev[e]] = -1;
+				rightIndex[candidates.pairCurrent[e]] = -1;
+			}
+
+			int nodes = left + right + 1;
+			int sink = left + right;
+			if(potential.length < nodes) {
+				potential = new double[nodes];
+				dist = new double[nodes];
+				via = new int[nodes];
+				done = new boolean[nodes];
+			}
+
+			//links by filament (counting sort)
+			Arrays.fill(edgeStart, 0, left + 1, 0);
+			for(int k = 0; k < edges; k++) {
+				edgeStart[leftOf[k] + 1]++;
+			}
+			for(int a = 0; a < left; a++) {
+				edgeStart[a + 1] += edgeStart[a];
+			}
+			int[] fill = Arrays.copyOf(edgeStart, left);
+			for(int k = 0; k < edges; k++) {
+				int s = fill[leftOf[k]]++;
+				int e = grouped[start + k];
+				edgeLeft[s] = leftOf[k];
+				edgeRight[s] = rightOf[k];
+				edgeCost[s] = candidates.pairDistance[e] - maxDistance;
+				edgePair[s] = e;
+			}
+
+			Arrays.fill(matchLeft, 0, left, -1);
+			Arrays.fill(matchRight, 0, right, -1);
+
+			//initial potentials that make every reduced cost non negative: 0 for the filaments,
+			//the cheapest incoming link for the rois and the cheapest roi for the sink
+			Arrays.fill(potential, 0, nodes, Double.POSITIVE_INFINITY);
+			Arrays.fill(potential, 0, left, 0);
+			for(int s = 0; s < edges; s++) {
+				potential[left + edgeRight[s]] = Math.min(potential[left + edgeRight[s]], edgeCost[s]);
+			}
+			for(int b = 0; b < right; b++) {
+				potential[sink] = Math.min(potential[sink], potential[left + b]);
+			}
+
+			while(shortestPath(nodes, sink)) {
+				//the real cost of the path is its reduced cost plus the potential of the sink (the source always stays at 0)
+				if(dist[sink] + potential[sink] >= 0) {
+					break;
+				}
+
+				for(int v = 0; v < nodes; v++) {
+					potential[v] += Math.min(dist[v], dist[sink]);
+				}
+
+				//flip the links along the path, from the sink back to the free filament it started from
+				int s = via[sink];
+				while(true) {
+					int a = edgeLeft[s];
+					int previous = matchLeft[a];
+					matchLeft[a] = s;
+					matchRight[edgeRight[s]] = s;
+					if(previous == -1) {
+						break;
+					}
+					s = via[left + edgeRight[previous]];
+				}
+			}
+
+			for(int a = 0; a < left; a++) {
+				if(matchLeft[a] != -1) {
+					matchedPair[edgePair[matchLeft[a]]] = true;
+				}
+			}
+		}
+
+		boolean isMatched(int pair) {
+			return matchedPair[pair];
+		}
+
+		/**
+		 * Dijkstra on the reduced costs from all the free filaments. Unused links go from a filament to a roi,
+		 * used links go back from the roi to its filament and free rois reach the sink.
+		 * @return false if the sink cannot be reached
+		 */
+		private boolean shortestPath(int nodes, int sink) {
+			Arrays.fill(dist, 0, nodes, Double.POSITIVE_INFINITY);
+			Arrays.fill(done, 0, nodes, false);
+			heapSize = 0;
+			for(int a = 0; a < left; a++) {
+				if(matchLeft[a] == -1) {
+					dist[a] = Math.max(-potential[a], 0);
+					via[a] = -1;
+					push(a, dist[a]);
+				}
+			}
+
+			while(heapSize > 0) {
+				int u = pop();
+				if(done[u]) {
+					continue;
+				}
+				done[u] = true;
+				if(u == sink) {
+					return true;
+				}
+
+				if(u < left) {
+					for(int s = edgeStart[u]; s < edgeStart[u + 1]; s++) {
+						if(matchLeft[u] == s) {
+							continue;
+						}
+						int v = left + edgeRight[s];
+						relax(v, dist[u] + Math.max(edgeCost[s] + potential[u] - potential[v], 0), s);
+					}
+				} else if(matchRight[u - left] == -1) {
+					relax(sink, dist[u] + Math.max(potential[u] - potential[sink], 0), via[u]);
+				} else {
+					int s = matchRight[u - left];
+					int a = edgeLeft[s];
+					relax(a, dist[u] + Math.max(-edgeCost[s] + potential[u] - potential[a], 0), s);
+				}
+			}
+			return false;
+		}
+
+		private void relax(int v, double d, int s) {
+			if(d < dist[v]) {
+				dist[v] = d;
+				via[v] = s;
+				push(v, d);
+			}
+		}
+
+		private void push(int node, double key) {
+			if(heapSize == heapNode.length) {
+				heapNode = Arrays.copyOf(heapNode, heapSize*2);
+				heapKey = Arrays.copyOf(heapKey, heapSize*2);
+			}
+			int i = heapSize++;
+			while(i > 0) {
+				int up = (i - 1)/2;
+				if(heapKey[up] <= key) {
+					break;
+				}
+				heapNode[i] = heapNode[up];
+				heapKey[i] = heapKey[up];
+				i = up;
+			}
+			heapNode[i] = node;
+			heapKey[i] = key;
+		}
+
+		private int pop() {
+			int top = heapNode[0];
+			int node = heapNode[--heapSize];
+			double key = heapKey[heapSize];
+			int i = 0;
+			while(2*i + 1 < heapSize) {
+				int child = 2*i + 1;
+				if(child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+					child++;
+				}
+				if(heapKey[child] >= key) {
+					break;
+				}
+				heapNode[i] = heapNode[child];
+				heapKey[i] = heapKey[child];
+				i = child;
+			}
+			heapNode[i] = node;
+			heapKey[i] = key;
+			return top;
+		}
+	}
+}
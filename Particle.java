@@ -0,0 +1,60 @@
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+
+/**
+ * One particle (filament) of a frame as found by the ComponentLabeler. The pixels of the particle are kept as runs of pixels
+ * (spans) instead of a polygon roi: the spans cover the same pixels as the mask of the traced roi (interior holes included),
+ * so measuring them gives the same sums as measuring the roi. The polygon is only traced when it has to be saved.
+ */
+class Particle {
+
+	final int slice; //the frame the particle was found in
+	final int x; //bounding box
+	final int y;
+	final int width;
+	final int height;
+	final int[] spans; //row, first x and last x + 1 of every span, rows in increasing order and x increasing within a row
+	final int area; //number of pixels in the spans
+	final double centroidX; //centroid of the contour, like Roi.getContourCentroid() of the traced roi
+	final double centroidY;
+
+	Particle(int slice, int x, int y, int width, int height, int[] spans, int area, double centroidX, double centroidY) {
+		this.slice = slice;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.spans = spans;
+		this.area = area;
+		this.centroidX = centroidX;
+		this.centroidY = centroidY;
+	}
+
+	/**
+	 * Traces the outline of the particle the way Analyze Particles does (Wand in legacy mode from the first pixel of the particle)
+	 * @return The traced polygon roi, with the frame of the particle as its position
+	 */
+	Roi outline() {
+		//the spans drawn in an image with a 1 pixel margin, so the outline never reaches the edges of the image
+		ByteProcessor ip = new ByteProcessor(width + 2, height + 2);
+		byte[] pixels = (byte[]) ip.getPixels();
+		for(int s = 0; s < spans.length; s += 3) {
+			int row = (spans[s] - y + 1)*(width + 2) - x + 1;
+			for(int i = row + spans[s + 1]; i < row + spans[s + 2]; i++) {
+				pixels[i] = (byte) 255;
+			}
+		}
+
+		Wand wand = new Wand(ip);
+		wand.autoOutline(spans[1] - x + 1, 1, 255.0, 255.0, Wand.LEGACY_MODE);
+		for(int i = 0; i < wand.npoints; i++) {
+			wand.xpoints[i] += x - 1;
+			wand.ypoints[i] += y - 1;
+		}
+		Roi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+		roi.setPosition(slice);
+		return roi;
+	}
+}
@@ -0,0 +1,305 @@
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Filters a 16-bit actin frame before thresholding: Unsharp Mask (Gaussian sigma 1, weight 0.6), Median (radius 2)
+ * and Subtract Background (rolling ball 50). The unsharp mask and the median are fused and done in bands of rows:
+ * the rows of a band are blurred, sharpened and median filtered while they are in the cache, with only the few rows
+ * of the neighbouring bands the kernels reach computed again. The rolling ball, which looks at the whole frame, then
+ * runs on the result with ImageJ's implementation.
+ * The arithmetic is the one of the ImageJ filters (same Gaussian kernel and edge handling, rounding to 16 bits after the
+ * unsharp mask, same circular median kernel with the edge pixels repeated), so the output is the same as running the
+ * three commands one after the other, pixel for pixel (checked by PreprocessorCheck in the benchmarks).
+ * All the buffers are kept between frames of the same size, so a frame allocates no image. Not thread safe, every thread
+ * needs its own Preprocessor.
+ */
+class Preprocessor {
+
+	private static final double SIGMA = 1;
+	private static final float WEIGHT = 0.6f;
+	private static final int BAND = 32; //rows filtered together
+	private static final int MEDIAN_RADIUS = 2;
+	private static final double ROLLING_BALL_RADIUS = 50;
+
+	private final float[] kernel; //the Gaussian kernel of ImageJ, kernel[0] is the center
+	private final float[] kernelSum; //running sums of the kernel for the pixels beyond the edges
+	private final int kRadius;
+	private final BackgroundSubtracter backgroundSubtracter = new BackgroundSubtracter();
+
+	private int width;
+	private int height;
+	private float[] blurredRows; //horizontally blurred rows of the band and its margins
+	private float[] sharpenedRows; //sharpened rows of the band and its median margins
+	private float[] firstRow; //horizontally blurred first and last rows of the frame (the vertical blur repeats them beyond the edges)
+	private float[] lastRow;
+	private float[] line; //one row of the frame
+	private float[] short3; //the sorted columns of the median kernel, 3 and 5 pixels high
+	private float[] tall5;
+	private FloatProcessor filtered; //the frame after the median, then the rolling ball
+	private ShortProcessor output;
+
+	Preprocessor() {
+		float[][] gaussian = new GaussianBlur().makeGaussianKernel(SIGMA, 0.01, Integer.MAX_VALUE);
+		kernel = gaussian[0];
+		kernelSum = gaussian[1];
+		kRadius = kernel.length;
+	}
+
+	/**
+	 * @param frame The raw 16-bit actin frame, it is not modified
+	 * @param report The report the time of the fused filters and of the rolling ball are added to
+	 * @return The filtered frame, reused by the next call
+	 */
+	ShortProcessor filter(ShortProcessor frame, RunReport report) {
+		RunReport.Probe probe = report.start();
+		allocate(frame.getWidth(), frame.getHeight());
+		short[] pixels = (short[]) frame.getPixels();
+		float[] result = (float[]) filtered.getPixels();
+
+		blurRow(pixels, 0, firstRow);
+		blurRow(pixels, height - 1, lastRow);
+
+		for(int y0 = 0; y0 < height; y0 += BAND) {
+			int y1 = Math.min(y0 + BAND, height);
+			//rows that are sharpened for the median of this band, and rows that are blurred for the vertical blur of those
+			int sharpFrom = Math.max(y0 - MEDIAN_RADIUS, 0);
+			int sharpTo = Math.min(y1 + MEDIAN_RADIUS, height);
+			int blurFrom = Math.max(sharpFrom - kRadius + 1, 0);
+			int blurTo = Math.min(sharpTo + kRadius - 1, height);
+
+			for(int y = blurFrom; y < blurTo; y++) {
+				blurRow(pixels, y, blurredRows, (y - blurFrom)*width);
+			}
+			for(int y = sharpFrom; y < sharpTo; y++) {
+				sharpenRow(pixels, y, blurFrom, (y - sharpFrom)*width);
+			}
+			for(int y = y0; y < y1; y++) {
+				medianRow(y, sharpFrom, sharpTo, result);
+			}
+		}
+		report.stop("segmentation.unsharp_mask_median", probe);
+
+		//Subtract Background on the median filtered frame, rounded to 16 bits the way the command does it
+		probe = report.start();
+		filtered.snapshot();
+		backgroundSubtracter.rollingBallBackground(filtered, ROLLING_BALL_RADIUS, false, false, false, true, true);
+		short[] out = (short[]) output.getPixels();
+		for(int p = 0; p < out.length; p++) {
+			float value = result[p] + 0.5f;
+			if(value < 0f) {
+				value = 0f;
+			} else if(value > 65535f) {
+				value = 65535f;
+			}
+			out[p] = (short) value;
+		}
+		output.resetMinAndMax();
+		report.stop("segmentation.subtract_background", probe);
+		return output;
+	}
+
+	private void allocate(int width, int height) {
+		if(output != null && width == this.width && height == this.height) {
+			return;
+		}
+		this.width = width;
+		this.height = height;
+		int rows = BAND + 2*(MEDIAN_RADIUS + kRadius);
+		blurredRows = new float[rows*width];
+		sharpenedRows = new float[(BAND + 2*MEDIAN_RADIUS)*width];
+		firstRow = new float[width];
+		lastRow = new float[width];
+		line = new float[width];
+		short3 = new float[4*(width + 2*MEDIAN_RADIUS)];
+		tall5 = new float[6*(width + 2*MEDIAN_RADIUS)];
+		filtered = new FloatProcessor(width, height);
+		output = new ShortProcessor(width, height);
+	}
+
+	private void blurRow(short[] pixels, int y, float[] target) {
+		blurRow(pixels, y, target, 0);
+	}
+
+	/**
+	 * Horizontal pass of the Gaussian blur on one row
+	 */
+	private void blurRow(short[] pixels, int y, float[] target, int offset) {
+		int p = y*width;
+		for(int x = 0; x < width; x++) {
+			line[x] = pixels[p + x] & 0xffff;
+		}
+		convolve(line, width, target, offset);
+	}
+
+	/**
+	 * Vertical pass of the Gaussian blur and unsharp mask of one row, rounded to 16 bits
+	 */
+	private void sharpenRow(short[] pixels, int y, int blurFrom, int offset) {
+		for(int x = 0; x < width; x++) {
+			//the column around y, rows outside the band are never read by the kernel
+			float result = blurred(y, x, blurFrom)*kernel[0];
+			if(y < kRadius) {
+				result += kernelSum[y]*firstRow[x];
+			}
+			if(y + kRadius > height - 1 + (y < kRadius ? 1 : 0)) { //same edge test as convolve
+				result += kernelSum[height - y - 1]*lastRow[x];
+			}
+			for(int k = 1; k < kRadius; k++) {
+				if(y - k >= 0 && y + k < height) {
+					result += kernel[k]*(blurred(y - k, x, blurFrom) + blurred(y + k, x, blurFrom));
+				} else {
+					float v = 0;
+					if(y - k >= 0) {
+						v += blurred(y - k, x, blurFrom);
+					}
+					if(y + k < height) {
+						v += blurred(y + k, x, blurFrom);
+					}
+					result += kernel[k]*v;
+				}
+			}
+
+			float value = ((pixels[y*width + x] & 0xffff) - WEIGHT*result)/(1f - WEIGHT) + 0.5f;
+			if(value < 0f) {
+				value = 0f;
+			} else if(value > 65535f) {
+				value = 65535f;
+			}
+			sharpenedRows[offset + x] = (int) value;
+		}
+	}
+
+	private float blurred(int y, int x, int blurFrom) {
+		return blurredRows[(y - blurFrom)*width + x];
+	}
+
+	/**
+	 * Median of the circular kernel of radius 2 around every pixel of a row, the edge pixels are repeated outside the frame.
+	 * The kernel is made of columns: 3 pixels high at x-2 and x+2, 5 pixels high from x-1 to x+1. Every column of the row
+	 * is sorted once, and shared by the 5 pixels whose kernels contain it, the median is then the 11th value of the merged columns.
+	 */
+	private void medianRow(int y, int sharpFrom, int sharpTo, float[] result) {
+		float[] v = sharpenedRows;
+		int r0 = (Math.max(y - 2, sharpFrom) - sharpFrom)*width;
+		int r1 = (Math.max(y - 1, sharpFrom) - sharpFrom)*width;
+		int r2 = (y - sharpFrom)*width;
+		int r3 = (Math.min(y + 1, sharpTo - 1) - sharpFrom)*width;
+		int r4 = (Math.min(y + 2, sharpTo - 1) - sharpFrom)*width;
+
+		//the sorted columns, with the edge columns repeated twice on both sides
+		for(int c = -MEDIAN_RADIUS; c < width + MEDIAN_RADIUS; c++) {
+			int x = Math.min(Math.max(c, 0), width - 1);
+			float a = v[r1 + x];
+			float b = v[r2 + x];
+			float d = v[r3 + x];
+			float low = Math.min(a, b);
+			float high = Math.max(a, b);
+			float middle = Math.min(high, d);
+			high = Math.max(high, d);
+			float lowest = Math.min(low, middle);
+			middle = Math.max(low, middle);
+			int t = 4*(c + MEDIAN_RADIUS);
+			short3[t] = lowest;
+			short3[t + 1] = middle;
+			short3[t + 2] = high;
+			short3[t + 3] = Float.POSITIVE_INFINITY;
+
+			//rows y-2 and y+2 merged into the sorted 3
+			float top = v[r0 + x];
+			float bottom = v[r4 + x];
+			float first = Math.min(top, bottom);
+			float second = Math.max(top, bottom);
+			int o = 6*(c + MEDIAN_RADIUS);
+			int i = t;
+			int end = t + 3;
+			int j = 0;
+			for(int k = 0; k < 5; k++) {
+				float next = j == 0 ? first : second;
+				if(j < 2 && (i == end || next < short3[i])) {
+					tall5[o + k] = next;
+					j++;
+				} else {
+					tall5[o + k] = short3[i++];
+				}
+			}
+			tall5[o + 5] = Float.POSITIVE_INFINITY;
+		}
+
+		int out = y*width;
+		for(int x = 0; x < width; x++) {
+			//the columns x-2 to x+2 are at x to x+4 in the arrays, each column ends with an infinite value
+			int i0 = 4*x;
+			int i1 = 6*(x + 1);
+			int i2 = 6*(x + 2);
+			int i3 = 6*(x + 3);
+			int i4 = 4*(x + 4);
+			float median = 0;
+			for(int k = 0; k <= 10; k++) {
+				float best = short3[i0];
+				int which = 0;
+				if(tall5[i1] < best) {
+					best = tall5[i1];
+					which = 1;
+				}
+				if(tall5[i2] < best) {
+					best = tall5[i2];
+					which = 2;
+				}
+				if(tall5[i3] < best) {
+					best = tall5[i3];
+					which = 3;
+				}
+				if(short3[i4] < best) {
+					best = short3[i4];
+					which = 4;
+				}
+				switch(which) {
+					case 0: i0++; break;
+					case 1: i1++; break;
+					case 2: i2++; break;
+					case 3: i3++; break;
+					default: i4++;
+				}
+				median = best;
+			}
+			result[out + x] = median;
+		}
+	}
+
+	/**
+	 * One pass of the Gaussian kernel over a line, with the pixels beyond the ends taken as the end pixels
+	 */
+	private void convolve(float[] input, int length, float[] target, int offset) {
+		float first = input[0];
+		float last = input[length - 1];
+		for(int i = 0; i < length; i++) {
+			float result = input[i]*kernel[0];
+			if(i < kRadius) {
+				result += kernelSum[i]*first;
+			}
+			//like GaussianBlur, the end pixel is added from i+kRadius > length in the first kRadius pixels and from i+kRadius >= length after them
+			if(i + kRadius > length - 1 + (i < kRadius ? 1 : 0)) {
+				result += kernelSum[length - i - 1]*last;
+			}
+			if(i >= kRadius - 1 && i + kRadius - 1 < length) {
+				for(int k = 1; k < kRadius; k++) {
+					result += kernel[k]*(input[i - k] + input[i + k]);
+				}
+			} else {
+				for(int k = 1; k < kRadius; k++) {
+					float v = 0;
+					if(i - k >= 0) {
+						v += input[i - k];
+					}
+					if(i + k < length) {
+						v += input[i + k];
+					}
+					result += kernel[k]*v;
+				}
+			}
+			target[offset + i] = result;
+		}
+	}
+}
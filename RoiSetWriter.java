@@ -0,0 +1,49 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+
+/**
+ * Writes rois one by one into a zip file in the RoiManager's RoiSet.zip format, so the RoiSet can be written while the
+ * tracks are accepted, without a RoiManager (or a display) and without holding the rois in memory.
+ * The roi of filament f in frame n is named "filament-f-frame-n" (also its entry in the zip) and has frame n as its position,
+ * so it can be found from the rows of the csv files, which use the same filament numbers.
+ */
+class RoiSetWriter {
+
+	private final ZipOutputStream zip;
+
+	/**
+	 * @param file The zip file to create
+	 * @throws IOException
+	 */
+	RoiSetWriter(File file) throws IOException {
+		zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+
+	/**
+	 * Adds the roi of a filament in one frame
+	 * @param roi The roi, its name and position are set
+	 * @param filament The filament (track) the roi belongs to
+	 * @param frame The frame the roi was found in
+	 * @throws IOException
+	 */
+	void add(Roi roi, int filament, int frame) throws IOException {
+		String name = String.format("filament-%d-frame-%04d", filament, frame);
+		roi.setName(name);
+		roi.setPosition(frame);
+
+		zip.putNextEntry(new ZipEntry(name + ".roi"));
+		zip.write(RoiEncoder.saveAsByteArray(roi));
+		zip.closeEntry();
+	}
+
+	void close() throws IOException {
+		zip.close();
+	}
+}
@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+/**
+ * Holds the rois (particles) of a movie together with their centroids and areas, computed once when the particles are labelled.
+ * Everything is indexed by frame and then by the order the rois were found in that frame, so tracking and measurement
+ * read the centroids from primitive arrays.
+ */
+class RoiStore {
+
+	Particle[][] rois;
+	double[][] x; //x coordinate of the contour centroid
+	double[][] y; //y coordinate of the contour centroid
+	int[][] area; //number of pixels inside the roi
+	int[] count;
+	private int total;
+
+	/**
+	 * @param frames The number of frames, frame numbers go from 0 to frames-1 (the slices of the stack start at 1)
+	 */
+	RoiStore(int frames) {
+		rois = new Particle[0][];
+		x = new double[0][];
+		y = new double[0][];
+		area = new int[0][];
+		count = new int[0];
+		ensureFrames(frames);
+	}
+
+	/**
+	 * Makes room for more frames, for movies whose length is not known in advance
+	 * @param frames The number of frames the store must hold
+	 */
+	void ensureFrames(int frames) {
+		int old = count.length;
+		if(frames <= old) {
+			return;
+		}
+		rois = Arrays.copyOf(rois, frames);
+		x = Arrays.copyOf(x, frames);
+		y = Arrays.copyOf(y, frames);
+		area = Arrays.copyOf(area, frames);
+		count = Arrays.copyOf(count, frames);
+		for(int f = old; f < frames; f++) {
+			rois[f] = new Particle[4];
+			x[f] = new double[4];
+			y[f] = new double[4];
+			area[f] = new int[4];
+		}
+	}
+
+	/**
+	 * Adds a roi to the frame it was found in
+	 * @param roi The particle
+	 * @return The index of the roi within its frame
+	 */
+	int add(Particle roi) {
+		int frame = roi.slice;
+		int i = count[frame];
+		if(i == rois[frame].length) {
+			rois[frame] = Arrays.copyOf(rois[frame], i*2);
+			x[frame] = Arrays.copyOf(x[frame], i*2);
+			y[frame] = Arrays.copyOf(y[frame], i*2);
+			area[frame] = Arrays.copyOf(area[frame], i*2);
+		}
+
+		rois[frame][i] = roi;
+		x[frame][i] = roi.centroidX;
+		y[frame][i] = roi.centroidY;
+		area[frame][i] = roi.area;
+		count[frame]++;
+		total++;
+		return i;
+	}
+
+	/**
+	 * @return The number of frames the store holds
+	 */
+	int frames() {
+		return count.length;
+	}
+
+	/**
+	 * @return The number of rois in all the frames
+	 */
+	int size() {
+		return total;
+	}
+
+	/**
+	 * @return The last frame that has at least one roi, or -1 if there are none
+	 */
+	int lastFrame() {
+		for(int f = count.length - 1; f >= 0; f--) {
+			if(count[f] > 0) {
+				return f;
+			}
+		}
+		return -1;
+	}
+}
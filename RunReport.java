@@ -0,0 +1,292 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Telemetry of the processing of one movie: the wall time, CPU time and allocated bytes of every stage, counters (rois, links,
+ * tracks kept and dropped, pixels scanned...) and the peak heap, written as a JSON file next to the csv files.
+ * A stage is timed with a probe taken on the thread that does the work: stop() adds the wall time, CPU time and allocations of that thread
+ * since the probe. Stages whose frames are processed in parallel are recorded in two parts, elapsed() on the thread that waits
+ * for the frames gives the wall time and work() on the threads that process the frames gives the CPU time and allocations.
+ * The steps done for every frame (e.g. each filter of the segmentation) are stopped once per frame, their wall time is summed over the frames.
+ * The peak heap is the one of the whole JVM, it includes the other movies when several are processed at the same time.
+ * Optionally every stop also commits a StageEvent to Java Flight Recorder. All the methods are thread safe.
+ */
+class RunReport {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final String movie;
+	private final boolean jfr;
+	private final long started = System.currentTimeMillis();
+	private final long start = System.nanoTime();
+	private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+
+	/**
+	 * Starts the report, the peak heap is counted from here
+	 * @param movie The name of the movie, given to the events
+	 * @param jfr True to also commit the stages as Java Flight Recorder events (ignored when the JVM has no flight recorder)
+	 */
+	RunReport(String movie, boolean jfr) {
+		this.movie = movie;
+		this.jfr = jfr && FlightRecorder.EVENT != null;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * The wall time, CPU time and allocated bytes of the current thread at the start of a stage
+	 */
+	static final class Probe {
+		final long wall = System.nanoTime();
+		final long cpu = cpuTime();
+		final long allocated = allocatedBytes();
+		final Event event;
+
+		private Probe(Event event) {
+			this.event = event;
+		}
+	}
+
+	/**
+	 * A stage on the timeline of a flight recording, implemented by StageEvent. RunReport only knows this interface, so the plugin
+	 * is built and runs without the jdk.jfr module (Java 8); StageEvent is compiled for Java 11 and only loaded when jfr=YES.
+	 */
+	interface Event {
+
+		/**
+		 * Starts the timing of the event
+		 */
+		void begin();
+
+		/**
+		 * Ends the event and records it
+		 */
+		void commit(String movie, String stage, long cpuTime, long allocated);
+	}
+
+	/**
+	 * @return A probe to be stopped by the thread that took it
+	 */
+	Probe start() {
+		Event event = null;
+		if(jfr) {
+			event = FlightRecorder.newEvent();
+			if(event != null) {
+				event.begin();
+			}
+		}
+		return new Probe(event);
+	}
+
+	/**
+	 * Adds the wall time, CPU time and allocations of the current thread since the probe to a stage
+	 */
+	void stop(String stage, Probe probe) {
+		record(stage, probe, true, true);
+	}
+
+	/**
+	 * Adds the wall time since the probe to a stage whose frames are processed by other threads
+	 */
+	void elapsed(String stage, Probe probe) {
+		record(stage, probe, true, false);
+	}
+
+	/**
+	 * Adds the CPU time and allocations of the current thread since the probe to a stage, for a part of the work of the stage
+	 */
+	void work(String stage, Probe probe) {
+		record(stage, probe, false, true);
+	}
+
+	private void record(String name, Probe probe, boolean wall, boolean work) {
+		long wallTime = System.nanoTime() - probe.wall;
+		long cpuTime = work ? cpuTime() - probe.cpu : 0;
+		long allocated = work ? allocatedBytes() - probe.allocated : 0;
+		synchronized(this) {
+			Stage stage = stages.get(name);
+			if(stage == null) {
+				stage = new Stage();
+				stages.put(name, stage);
+			}
+			if(wall) {
+				stage.calls++;
+				stage.wallTime += wallTime;
+			}
+			if(work) {
+				stage.cpuTime += cpuTime;
+				stage.allocated += allocated;
+			}
+		}
+
+		if(probe.event != null) {
+			probe.event.commit(movie, name, cpuTime, allocated);
+		}
+	}
+
+	/**
+	 * Adds to a counter
+	 */
+	synchronized void count(String counter, long amount) {
+		Long value = counters.get(counter);
+		counters.put(counter, value == null ? amount : value + amount);
+	}
+
+	/**
+	 * Records the value of a parameter of the run
+	 */
+	synchronized void parameter(String name, Object value) {
+		parameters.put(name, value);
+	}
+
+	/**
+	 * Writes the report, the total wall time and the peak heap are the ones at the time of writing
+	 * @param file The JSON file to create
+	 * @throws IOException
+	 */
+	synchronized void write(File file) throws IOException {
+		long peakHeap = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("{\n");
+			out.write("  \"movie\": " + quote(movie) + ",\n");
+			out.write("  \"started\": " + quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(started))) + ",\n");
+			out.write("  \"wall_ms\": " + millis(System.nanoTime() - start) + ",\n");
+			out.write("  \"peak_heap_bytes\": " + peakHeap + ",\n");
+			out.write("  \"max_heap_bytes\": " + Runtime.getRuntime().maxMemory() + ",\n");
+			out.write("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+
+			out.write("  \"parameters\": {");
+			String separator = "\n";
+			for(Map.Entry<String, Object> parameter : parameters.entrySet()) {
+				Object value = parameter.getValue();
+				out.write(separator + "    " + quote(parameter.getKey()) + ": "
+						+ (value instanceof Number || value instanceof Boolean ? value : quote(String.valueOf(value))));
+				separator = ",\n";
+			}
+			out.write("\n  },\n");
+
+			out.write("  \"stages\": [");
+			separator = "\n";
+			for(Map.Entry<String, Stage> entry : stages.entrySet()) {
+				Stage stage = entry.getValue();
+				out.write(separator + "    {\"name\": " + quote(entry.getKey()) + ", \"calls\": " + stage.calls + ", \"wall_ms\": " + millis(stage.wallTime)
+						+ ", \"cpu_ms\": " + millis(stage.cpuTime) + ", \"allocated_bytes\": " + stage.allocated + "}");
+				separator = ",\n";
+			}
+			out.write("\n  ],\n");
+
+			out.write("  \"counters\": {");
+			separator = "\n";
+			for(Map.Entry<String, Long> counter : counters.entrySet()) {
+				out.write(separator + "    " + quote(counter.getKey()) + ": " + counter.getValue());
+				separator = ",\n";
+			}
+			out.write("\n  }\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static final class Stage {
+		long calls;
+		long wallTime;
+		long cpuTime;
+		long allocated;
+	}
+
+	/**
+	 * Loads StageEvent the first time jfr=YES is used
+	 */
+	private static final class FlightRecorder {
+
+		//null when the JVM has no flight recorder (Java 8) or the plugin was built without StageEvent
+		static final Constructor<? extends Event> EVENT = eventConstructor();
+
+		private static Constructor<? extends Event> eventConstructor() {
+			try {
+				Class.forName("jdk.jfr.Event");
+				return Class.forName("StageEvent").asSubclass(Event.class).getDeclaredConstructor();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return A new event, null if it cannot be made
+		 */
+		static Event newEvent() {
+			try {
+				return EVENT.newInstance();
+			} catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return The CPU time of the current thread in nanoseconds, 0 when the JVM cannot measure it
+	 */
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * @return The bytes allocated by the current thread so far, 0 when the JVM cannot measure it
+	 */
+	private static long allocatedBytes() {
+		if(THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return 0;
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos/1e6);
+	}
+
+	private static String quote(String text) {
+		if(text == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if(c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,312 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Keeps the segmentation of the movies already processed (the particles and count masks of every frame) in a folder, so running
+ * a movie again with other tracking, consecutive appearance or area parameters skips the filters and the particle analysis.
+ * An entry is named after the SHA-256 of the actin file and of everything the segmentation depends on (minimum particle size in
+ * pixels, watershed, the filter settings of the Segmenter and the format of the entry), so a changed file or parameter is
+ * simply a different entry. An entry is one deflate compressed file:
+ * <pre>
+ * int magic "AESG", int version, int width, int height, int frames
+ * for every frame: int number of particles
+ *     for every particle: int x, y, width, height, area, double centroid x, centroid y, int number of spans values, the spans values
+ *     the count masks, width*height shorts
+ * </pre>
+ * Entries are written to a temporary file and renamed when complete, so movies processed at the same time can share the folder.
+ * The folder is kept under a size limit by deleting the least recently used entries (a hit updates the modification time).
+ */
+class SegmentationCache {
+
+	private static final int MAGIC = 0x41455347; //"AESG"
+	//the format of the entries and the segmentation code that is not in Segmenter.SETTINGS: bump it when the labelling
+	//(ComponentLabeler), the Preprocessor or the thresholding changes the particles or masks, so the entries made by older code are not used.
+	//2: the threshold is calculated on the frame scaled to 8 bits
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".seg";
+
+	private final File folder;
+	private final long maxBytes;
+
+	/**
+	 * @param folder The folder of the entries, created if needed
+	 * @param maxBytes The maximum total size of the entries
+	 */
+	SegmentationCache(File folder, long maxBytes) {
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		folder.mkdirs();
+	}
+
+	/**
+	 * @param actinFile The actin stack, its content is hashed
+	 * @param minSize The minimum particle size in pixels
+	 * @param watershed True if touching filaments are separated with a watershed
+	 * @return The key of the segmentation of this movie with these parameters
+	 * @throws IOException If the stack cannot be read
+	 */
+	String key(File actinFile, double minSize, boolean watershed) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); //every JVM has SHA-256
+		}
+
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(actinFile);
+		try {
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		digest.update(("min_size=" + minSize + ";watershed=" + watershed + ";filters=" + Segmenter.SETTINGS + ";format=" + VERSION)
+				.getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder(64);
+		for(byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Opens the entry of a movie
+	 * @param key The key of the movie
+	 * @param width The width of the frames
+	 * @param height The height of the frames
+	 * @param frames The number of frames
+	 * @return The reader of the frames, or null if the movie has no entry (or an entry that does not match the movie)
+	 */
+	Reader open(String key, int width, int height, int frames) {
+		File entry = new File(folder, key + SUFFIX);
+		if(!entry.isFile()) {
+			return null;
+		}
+		try {
+			Reader reader = new Reader(entry, width, height, frames);
+			entry.setLastModified(System.currentTimeMillis());
+			return reader;
+		} catch (IOException e) {
+			IJ.log("Ignoring the unreadable segmentation cache entry " + entry.getName() + ": " + e);
+			entry.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a new entry, the frames must be added in order
+	 * @return The writer of the entry, it only becomes visible once committed
+	 * @throws IOException
+	 */
+	Writer create(String key, int width, int height, int frames) throws IOException {
+		return new Writer(new File(folder, key + SUFFIX), width, height, frames);
+	}
+
+	/**
+	 * Deletes the least recently used entries until the entries take at most maxBytes
+	 */
+	private synchronized void evict() {
+		File[] entries = folder.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if(entries == null) {
+			return;
+		}
+		long[] modified = new long[entries.length];
+		long total = 0;
+		for(int i = 0; i < entries.length; i++) {
+			modified[i] = entries[i].lastModified();
+			total += entries[i].length();
+		}
+
+		Integer[] order = new Integer[entries.length];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+		for(int i = 0; i < order.length && total > maxBytes; i++) {
+			long length = entries[order[i]].length();
+			if(entries[order[i]].delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * Reads the frames of an entry one after the other
+	 */
+	static final class Reader {
+
+		private final File entry;
+		private final DataInputStream in;
+		private final int width;
+		private final int height;
+		private final byte[] bytes;
+
+		private Reader(File entry, int width, int height, int frames) throws IOException {
+			this.entry = entry;
+			in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(entry)), 1 << 16));
+			this.width = width;
+			this.height = height;
+			bytes = new byte[2*width*height];
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != width || in.readInt() != height || in.readInt() != frames) {
+					throw new IOException("not an entry of this movie");
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @param slice The next frame
+		 * @param particles The particles of the frame are added to this list
+		 * @return The count masks of the frame
+		 * @throws IOException
+		 */
+		ShortProcessor next(int slice, List<Particle> particles) throws IOException {
+			int count = in.readInt();
+			for(int p = 0; p < count; p++) {
+				int x = in.readInt();
+				int y = in.readInt();
+				int particleWidth = in.readInt();
+				int particleHeight = in.readInt();
+				int area = in.readInt();
+				double centroidX = in.readDouble();
+				double centroidY = in.readDouble();
+				int[] spans = new int[in.readInt()];
+				for(int s = 0; s < spans.length; s++) {
+					spans[s] = in.readInt();
+				}
+				particles.add(new Particle(slice, x, y, particleWidth, particleHeight, spans, area, centroidX, centroidY));
+			}
+
+			in.readFully(bytes);
+			short[] pixels = new short[width*height];
+			ByteBuffer.wrap(bytes).asShortBuffer().get(pixels);
+			return new ShortProcessor(width, height, pixels, null);
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Closes and deletes an entry that could not be read to the end
+		 */
+		void discard() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				//the file is deleted anyway
+			}
+			IJ.log("Deleting the unreadable segmentation cache entry " + entry.getName());
+			entry.delete();
+		}
+	}
+
+	/**
+	 * Writes the frames of a new entry one after the other
+	 */
+	final class Writer {
+
+		private final File entry;
+		private final File temporary;
+		private final DataOutputStream out;
+		private final byte[] bytes;
+
+		private Writer(File entry, int width, int height, int frames) throws IOException {
+			this.entry = entry;
+			temporary = File.createTempFile(entry.getName(), ".tmp", folder);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new DeflaterOutputStream(new FileOutputStream(temporary), new Deflater(Deflater.BEST_SPEED), 1 << 16), 1 << 16));
+			bytes = new byte[2*width*height];
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(frames);
+		}
+
+		/**
+		 * Adds the next frame
+		 * @param particles The particles found in the frame
+		 * @param mask The count masks of the frame
+		 * @throws IOException
+		 */
+		void add(List<Particle> particles, ImageProcessor mask) throws IOException {
+			out.writeInt(particles.size());
+			for(Particle particle : particles) {
+				out.writeInt(particle.x);
+				out.writeInt(particle.y);
+				out.writeInt(particle.width);
+				out.writeInt(particle.height);
+				out.writeInt(particle.area);
+				out.writeDouble(particle.centroidX);
+				out.writeDouble(particle.centroidY);
+				out.writeInt(particle.spans.length);
+				for(int value : particle.spans) {
+					out.writeInt(value);
+				}
+			}
+
+			ByteBuffer.wrap(bytes).asShortBuffer().put((short[]) mask.getPixels());
+			out.write(bytes);
+		}
+
+		/**
+		 * Makes the entry visible to the next runs and evicts the least recently used entries if the folder is too large
+		 * @throws IOException
+		 */
+		void commit() throws IOException {
+			out.close();
+			if(entry.exists()) {
+				entry.delete(); //written by another movie at the same time
+			}
+			if(!temporary.renameTo(entry)) {
+				temporary.delete();
+				throw new IOException("Could not rename " + temporary + " to " + entry);
+			}
+			if(entry.length() > maxBytes) {
+				IJ.log("The segmentation of " + entry.getName() + " is larger than the segmentation cache (" + (entry.length() >> 20) + " MB)");
+			}
+			evict();
+		}
+
+		/**
+		 * Drops the entry
+		 */
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				//the file is deleted anyway
+			}
+			temporary.delete();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.plugin.filter.EDM;
+import ij.plugin.filter.RankFilters;
+import ij.plugin.filter.UnsharpMask;
+import ij.process.AutoThresholder.Method;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Makes the binary mask of one actin frame for the particle analysis by calling the ImageJ filters directly
+ * instead of running them as commands on the whole stack:
+ * Unsharp Mask (radius 1, weight 0.6), Median (radius 2), Subtract Background (rolling ball 50),
+ * Make Binary (Moments, dark background, threshold calculated for each frame on the frame scaled to 8 bits) and optionally Watershed.
+ * All the passes are done on one frame before the next one, while its pixels are still in the cache.
+ * 16-bit frames go through the fused Preprocessor, which gives the same pixels in fewer passes over the frame.
+ * The filters keep state between calls, so a Segmenter is only used by one thread at a time.
+ * Every step is timed for the run report, as the "segmentation." stages.
+ */
+class Segmenter {
+
+	private static final double UNSHARP_RADIUS = 1;
+	private static final float UNSHARP_WEIGHT = 0.6f;
+	private static final double MEDIAN_RADIUS = 2;
+	private static final double ROLLING_BALL_RADIUS = 50;
+	private static final Method THRESHOLD = Method.Moments;
+
+	//the filters and threshold above, part of the key of the segmentation cache
+	static final String SETTINGS = "unsharp_mask=" + UNSHARP_RADIUS + "," + UNSHARP_WEIGHT + ";median=" + MEDIAN_RADIUS
+			+ ";rolling_ball=" + ROLLING_BALL_RADIUS + ";threshold=" + THRESHOLD;
+
+	private final boolean watershed;
+	private final UnsharpMask unsharpMask = new UnsharpMask();
+	private final RankFilters rankFilters = new RankFilters();
+	private final BackgroundSubtracter backgroundSubtracter = new BackgroundSubtracter();
+	private final EDM edm = new EDM();
+	private final Preprocessor preprocessor = new Preprocessor();
+
+	/**
+	 * @param watershed True to separate touching filaments with a watershed
+	 */
+	Segmenter(boolean watershed) {
+		this.watershed = watershed;
+	}
+
+	/**
+	 * @param frame The raw actin frame, it is not modified
+	 * @param report The report the time of each step is added to
+	 * @return The binary mask of the frame, filaments are 255 and the background 0
+	 */
+	ByteProcessor segment(ImageProcessor frame, RunReport report) {
+		ImageProcessor ip;
+		if(frame instanceof ShortProcessor) {
+			ip = preprocessor.filter((ShortProcessor) frame, report);
+		} else {
+			RunReport.Probe probe = report.start();
+			ip = frame.duplicate();
+
+			//Unsharp Mask works on a float copy, which is converted back (rounded and clamped) like the command does
+			FloatProcessor fp = ip.toFloat(0, null);
+			fp.snapshot();
+			unsharpMask.sharpenFloat(fp, UNSHARP_RADIUS, UNSHARP_WEIGHT);
+			ip.setPixels(0, fp);
+			report.stop("segmentation.unsharp_mask", probe);
+
+			probe = report.start();
+			rankFilters.rank(ip, MEDIAN_RADIUS, RankFilters.MEDIAN);
+			report.stop("segmentation.median", probe);
+
+			probe = report.start();
+			backgroundSubtracter.rollingBallBackground(ip, ROLLING_BALL_RADIUS, false, false, false, true, true);
+			report.stop("segmentation.subtract_background", probe);
+		}
+
+		//Make Binary with the threshold of this frame: like the command, a frame that is not 8-bit is scaled to 8 bits
+		//over its own range first, and the threshold is calculated on the histogram of the 8-bit frame
+		RunReport.Probe probe = report.start();
+		if(!(ip instanceof ByteProcessor)) {
+			ip.resetMinAndMax();
+			ip = ip.convertToByte(true);
+		}
+		ip.setAutoThreshold(THRESHOLD, true, ImageProcessor.NO_LUT_UPDATE);
+		int lower = (int) ip.getMinThreshold();
+		int upper = (int) ip.getMaxThreshold();
+		byte[] bytes = (byte[]) ip.getPixels();
+		ByteProcessor binary = new ByteProcessor(ip.getWidth(), ip.getHeight());
+		byte[] pixels = (byte[]) binary.getPixels();
+		for(int i = 0; i < pixels.length; i++) {
+			int value = bytes[i] & 0xff;
+			if(value >= lower && value <= upper) {
+				pixels[i] = (byte) 255;
+			}
+		}
+		report.stop("segmentation.threshold", probe);
+
+		if(watershed) {
+			probe = report.start();
+			edm.toWatershed(binary);
+			report.stop("segmentation.watershed", probe);
+		}
+		return binary;
+	}
+}
@@ -0,0 +1,68 @@
+import java.io.File;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Opens the actin and ABP stacks of a movie. Each file is decoded only once and the same images are handed to every stage:
+ * the segmentation filters a copy of each actin frame, while the untouched actin pixels are kept for the measurements.
+ * In virtual mode the stacks are opened as virtual stacks, which read a frame from the file each time it is asked for,
+ * so movies larger than the heap can be processed.
+ */
+class StackLoader {
+
+	private final File actinFile;
+	private final File ABPFile;
+	private final boolean virtual;
+	private ImagePlus actin;
+	private ImagePlus ABP;
+
+	/**
+	 * @param actinFile The actin channel movie
+	 * @param ABPFile The ABP channel movie
+	 * @param virtual True to open the stacks as virtual stacks instead of loading them in memory
+	 */
+	StackLoader(File actinFile, File ABPFile, boolean virtual) {
+		this.actinFile = actinFile;
+		this.ABPFile = ABPFile;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * @return The raw actin stack, opened the first time it is needed
+	 */
+	synchronized ImagePlus actin() {
+		if(actin == null) {
+			actin = open(actinFile);
+		}
+		return actin;
+	}
+
+	/**
+	 * @return The raw ABP stack, opened the first time it is needed
+	 */
+	synchronized ImagePlus ABP() {
+		if(ABP == null) {
+			ABP = open(ABPFile);
+		}
+		return ABP;
+	}
+
+	private ImagePlus open(File file) {
+		return virtual ? IJ.openVirtual(file.getAbsolutePath()) : IJ.openImage(file.getAbsolutePath());
+	}
+
+	/**
+	 * Releases both stacks
+	 */
+	synchronized void close() {
+		if(actin != null) {
+			actin.close();
+			actin = null;
+		}
+		if(ABP != null) {
+			ABP.close();
+			ABP = null;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for a stage (or the step of a frame) recorded by RunReport, so the stages can be seen on the
+ * timeline of a recording next to the GC and thread events, e.g. with java -XX:StartFlightRecording=filename=run.jfr and jfr=YES.
+ * Only loaded (by RunReport, through the RunReport.Event interface) when the JVM has the flight recorder; it is the only class of the
+ * plugin that needs the jdk.jfr module, so it is compiled for Java 11 on its own and the rest of the plugin still runs on Java 8.
+ */
+@Name("ActinEnrichment.Stage")
+@Label("Stage")
+@Category("ActinEnrichment")
+@Description("A stage of the processing of a movie, or one step of it for one frame")
+class StageEvent extends Event implements RunReport.Event {
+
+	@Label("Movie")
+	String movie;
+
+	@Label("Stage")
+	String stage;
+
+	@Label("CPU Time")
+	@Description("CPU time of the thread, 0 for the wall time of a stage done by other threads")
+	@Timespan
+	long cpuTime;
+
+	@Label("Allocated")
+	@Description("Bytes allocated by the thread")
+	@DataAmount
+	long allocated;
+
+	@Override
+	public void commit(String movie, String stage, long cpuTime, long allocated) {
+		end();
+		this.movie = movie;
+		this.stage = stage;
+		this.cpuTime = cpuTime;
+		this.allocated = allocated;
+		commit();
+	}
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+/**
+ * Per filament (track) values of a movie stored in primitive columns indexed by the filament number (its slot in the frames).
+ * The area and ratio statistics are running (Welford) accumulators, so the mean and standard deviation of every filament are
+ * known after a single pass over the measurements without keeping the individual ratios.
+ * The table grows with the number of tracks actually found, tracks that were never seen read as 0.
+ */
+class TrackTable {
+
+	int[] appearances; //number of consecutive appearances (links to the previous frames)
+	int[] count; //number of frames the filament was measured in
+	double[] areaSum; //sum of the areas of the filament over the frames it was measured in
+	double[] mean; //running mean of the ABP/actin ratio of the filament
+	double[] m2; //running sum of the squared differences from the mean of the ratios
+	private int size;
+
+	TrackTable() {
+		appearances = new int[64];
+		count = new int[64];
+		areaSum = new double[64];
+		mean = new double[64];
+		m2 = new double[64];
+	}
+
+	/**
+	 * @return The number of tracks in the table, the highest filament number seen plus one
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Makes sure tracks 0 to tracks-1 exist
+	 * @param tracks The number of tracks the table must hold
+	 */
+	void ensure(int tracks) {
+		if(tracks > appearances.length) {
+			int capacity = Math.max(tracks, appearances.length*2);
+			appearances = Arrays.copyOf(appearances, capacity);
+			count = Arrays.copyOf(count, capacity);
+			areaSum = Arrays.copyOf(areaSum, capacity);
+			mean = Arrays.copyOf(mean, capacity);
+			m2 = Arrays.copyOf(m2, capacity);
+		}
+		size = Math.max(size, tracks);
+	}
+
+	/**
+	 * Counts one more consecutive appearance for a track
+	 * @param track The filament number that was linked in the current frame
+	 */
+	void addAppearance(int track) {
+		ensure(track + 1);
+		appearances[track]++;
+	}
+
+	/**
+	 * @param track The filament number
+	 * @return The number of consecutive appearances of the track, 0 for tracks that were never linked
+	 */
+	int appearances(int track) {
+		return track < size ? appearances[track] : 0;
+	}
+
+	/**
+	 * Adds the measurement of one frame to the statistics of a track
+	 * @param track The filament number
+	 * @param area The area of the filament in that frame
+	 * @param ratio The ABP/actin ratio of the filament in that frame
+	 */
+	void add(int track, double area, double ratio) {
+		ensure(track + 1);
+		int n = ++count[track];
+		areaSum[track] += area;
+		double delta = ratio - mean[track];
+		mean[track] += delta/n;
+		m2[track] += delta*(ratio - mean[track]);
+	}
+
+	/**
+	 * @param track The filament number
+	 * @return The average area of the track over the frames it was measured in
+	 */
+	double averageArea(int track) {
+		return areaSum[track]/count[track];
+	}
+
+	/**
+	 * @param track The filament number
+	 * @return The sample standard deviation of the ratios of the track
+	 */
+	double sd(int track) {
+		return Math.sqrt(m2[track]/(count[track] - 1));
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * The working objects of one movie (summed-area tables, filters...) that can only be used by one thread at a time.
+ * A thread takes one for a frame and gives it back when the frame is done, so no more objects are made than frames are
+ * processed at the same time. The pool belongs to the movie and is cleared when the movie ends: unlike a ThreadLocal, the buffers
+ * are not left on the threads of the shared common pool, which every movie of a batch would otherwise fill with its own copies.
+ */
+final class WorkerPool<T> {
+
+	private final Supplier<T> factory;
+	private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+
+	/**
+	 * @param factory Makes a new object when all of them are in use
+	 */
+	WorkerPool(Supplier<T> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @return An object no other thread uses until it is given back
+	 */
+	T take() {
+		T worker = idle.poll();
+		return worker != null ? worker : factory.get();
+	}
+
+	/**
+	 * Makes an object taken from the pool available to the other threads
+	 */
+	void give(T worker) {
+		idle.offer(worker);
+	}
+
+	/**
+	 * Drops the objects, at the end of the movie
+	 */
+	void clear() {
+		idle.clear();
+	}
+}
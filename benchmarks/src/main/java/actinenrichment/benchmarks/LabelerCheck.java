@@ -0,0 +1,350 @@
+package actinenrichment.benchmarks;
+
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Checks that the ComponentLabeler of the plugin finds the same particles as Analyze Particles with exclude and Count Masks, with
+ * every particle traced by the Wand, which the plugin ran before: the same count masks, and for every particle in the same order
+ * the bounding box, the pixels of the traced roi (holes filled), its area and contour centroid, and the outline of Particle.outline().
+ * The frames are a frame of shapes (particles touching side by side and only diagonally, particles with one or several holes,
+ * particles nested in the holes of others, concavities open to the outside, particles on the edges and around the minimum size)
+ * and random binary frames of several densities, whose particles have many holes of all shapes.
+ * Everything must be the same; the differences are reported and the exit code is 1 if a frame differs. To be run after a change
+ * of the ComponentLabeler or of the ImageJ version.
+ * <p>
+ * java -cp benchmarks.jar actinenrichment.benchmarks.LabelerCheck seed=1 frames=5
+ * <p>
+ * "frames" is the number of random frames of every size and density.
+ */
+public final class LabelerCheck {
+
+	private static final int[][] SIZES = {{7, 5}, {40, 33}, {64, 64}, {257, 129}};
+	private static final double[] DENSITIES = {0.2, 0.45, 0.55, 0.6};
+	private static final double[] MIN_SIZES = {1, 10};
+
+	private static final Class<?> LABELER = Plugin.load("ComponentLabeler");
+	private static final Class<?> PARTICLE = Plugin.load("Particle");
+	private static final Method LABEL = Plugin.method(LABELER, "label", ByteProcessor.class, int.class, double.class, List.class);
+	private static final Method OUTLINE = Plugin.method(PARTICLE, "outline");
+	private static final Field X = Plugin.field(PARTICLE, "x");
+	private static final Field Y = Plugin.field(PARTICLE, "y");
+	private static final Field WIDTH = Plugin.field(PARTICLE, "width");
+	private static final Field HEIGHT = Plugin.field(PARTICLE, "height");
+	private static final Field SPANS = Plugin.field(PARTICLE, "spans");
+	private static final Field AREA = Plugin.field(PARTICLE, "area");
+	private static final Field CENTROID_X = Plugin.field(PARTICLE, "centroidX");
+	private static final Field CENTROID_Y = Plugin.field(PARTICLE, "centroidY");
+
+	public static void main(String[] args) throws IllegalAccessException {
+		String options = String.join(" ", args);
+		Random random = new Random(Long.parseLong(Macro.getValue(options, "seed", "1")));
+		int frames = Integer.parseInt(Macro.getValue(options, "frames", "5"));
+
+		//the same labeler for all the frames, like a thread of the plugin
+		Object labeler = Plugin.create(LABELER);
+
+		int checked = 0;
+		int failed = 0;
+		int particles = 0;
+		for(double minSize : MIN_SIZES) {
+			int found = check("shapes", shapes(), minSize, labeler);
+			particles += Math.max(found, 0);
+			checked++;
+			if(found < 0) {
+				failed++;
+			}
+
+			for(int[] size : SIZES) {
+				for(double density : DENSITIES) {
+					for(int n = 0; n < frames; n++) {
+						String name = size[0] + "x" + size[1] + " density " + density + " frame " + (n + 1);
+						found = check(name, noise(size[0], size[1], density, random), minSize, labeler);
+						particles += Math.max(found, 0);
+						checked++;
+						if(found < 0) {
+							failed++;
+						}
+					}
+				}
+			}
+		}
+
+		System.out.println(checked + " frames checked (" + particles + " particles), " + failed + " differ");
+		if(failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Labels the frame with the ComponentLabeler and with Analyze Particles and compares them
+	 * @return The number of particles, or -1 if the frame differs
+	 */
+	private static int check(String name, ByteProcessor binary, double minSize, Object labeler) throws IllegalAccessException {
+		String frame = name + ", min size " + minSize + ": ";
+
+		//Analyze Particles, recording the first pixel of every particle, from which it is traced with the Wand like the particle
+		//analyzer does for the rois it adds to the manager (which needs a window)
+		ImagePlus imp = new ImagePlus(name, binary.duplicate());
+		imp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		ResultsTable table = new ResultsTable();
+		ParticleAnalyzer analyzer = new ParticleAnalyzer(ParticleAnalyzer.SHOW_ROI_MASKS | ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES
+				| ParticleAnalyzer.RECORD_STARTS, Measurements.AREA, table, minSize, Double.POSITIVE_INFINITY);
+		analyzer.setHideOutputImage(true);
+		analyzer.analyze(imp, imp.getProcessor());
+		short[] expectedMask = (short[]) analyzer.getOutputImage().getProcessor().convertToShort(false).getPixels();
+		Roi[] rois = new Roi[table.size()];
+		for(int r = 0; r < rois.length; r++) {
+			Wand wand = new Wand(binary);
+			wand.autoOutline((int) table.getValue("XStart", r), (int) table.getValue("YStart", r), 255.0, 255.0, Wand.LEGACY_MODE);
+			rois[r] = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints), Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints,
+					Roi.TRACED_ROI);
+		}
+
+		List<Object> particles = new ArrayList<Object>();
+		short[] mask = (short[]) ((ShortProcessor) Plugin.invoke(LABEL, labeler, binary, 1, minSize, particles)).getPixels();
+
+		boolean same = true;
+		int width = binary.getWidth();
+		for(int i = 0; i < mask.length; i++) {
+			if(mask[i] != expectedMask[i]) {
+				System.out.println(frame + "count masks differ first at x=" + i%width + " y=" + i/width + ": " + (mask[i] & 0xffff)
+						+ " instead of " + (expectedMask[i] & 0xffff));
+				same = false;
+				break;
+			}
+		}
+		if(particles.size() != rois.length) {
+			System.out.println(frame + particles.size() + " particles instead of " + rois.length);
+			return -1;
+		}
+
+		for(int p = 0; p < rois.length && same; p++) {
+			Object particle = particles.get(p);
+			Roi roi = rois[p];
+			String label = frame + "particle " + (p + 1) + " ";
+
+			Rectangle bounds = roi.getBounds();
+			Rectangle box = new Rectangle(X.getInt(particle), Y.getInt(particle), WIDTH.getInt(particle), HEIGHT.getInt(particle));
+			if(!box.equals(bounds)) {
+				System.out.println(label + "has the bounding box " + box + " instead of " + bounds);
+				same = false;
+			}
+
+			int[] pixels = pixels((int[]) SPANS.get(particle), width);
+			int[] expectedPixels = pixels(roi.getContainedPoints(), width);
+			if(!Arrays.equals(pixels, expectedPixels)) {
+				System.out.println(label + "has " + pixels.length + " pixels instead of the " + expectedPixels.length + " of the roi");
+				same = false;
+			} else if(AREA.getInt(particle) != expectedPixels.length) {
+				System.out.println(label + "has an area of " + AREA.getInt(particle) + " instead of " + expectedPixels.length);
+				same = false;
+			}
+
+			double[] centroid = roi.getContourCentroid();
+			if(CENTROID_X.getDouble(particle) != centroid[0] || CENTROID_Y.getDouble(particle) != centroid[1]) {
+				System.out.println(label + "has the centroid " + CENTROID_X.getDouble(particle) + "," + CENTROID_Y.getDouble(particle)
+						+ " instead of " + centroid[0] + "," + centroid[1]);
+				same = false;
+			}
+
+			Polygon outline = ((Roi) Plugin.invoke(OUTLINE, particle)).getPolygon();
+			Polygon expectedOutline = roi.getPolygon();
+			if(outline.npoints != expectedOutline.npoints
+					|| !Arrays.equals(Arrays.copyOf(outline.xpoints, outline.npoints), Arrays.copyOf(expectedOutline.xpoints, expectedOutline.npoints))
+					|| !Arrays.equals(Arrays.copyOf(outline.ypoints, outline.npoints), Arrays.copyOf(expectedOutline.ypoints, expectedOutline.npoints))) {
+				System.out.println(label + "is traced with " + outline.npoints + " points, differently from the " + expectedOutline.npoints
+						+ " of the roi");
+				same = false;
+			}
+		}
+		return same ? rois.length : -1;
+	}
+
+	/**
+	 * @return The sorted indices of the pixels of the spans
+	 */
+	private static int[] pixels(int[] spans, int width) {
+		int count = 0;
+		for(int s = 0; s < spans.length; s += 3) {
+			count += spans[s + 2] - spans[s + 1];
+		}
+		int[] pixels = new int[count];
+		int i = 0;
+		for(int s = 0; s < spans.length; s += 3) {
+			for(int x = spans[s + 1]; x < spans[s + 2]; x++) {
+				pixels[i++] = spans[s]*width + x;
+			}
+		}
+		Arrays.sort(pixels);
+		return pixels;
+	}
+
+	/**
+	 * @return The sorted indices of the points
+	 */
+	private static int[] pixels(Point[] points, int width) {
+		int[] pixels = new int[points.length];
+		for(int i = 0; i < points.length; i++) {
+			pixels[i] = points[i].y*width + points[i].x;
+		}
+		Arrays.sort(pixels);
+		return pixels;
+	}
+
+	/**
+	 * @return A frame of drawn particles, each one a case the labelling has to get right
+	 */
+	private static ByteProcessor shapes() {
+		ByteProcessor ip = new ByteProcessor(160, 120);
+		ip.setValue(255);
+
+		//two squares touching only by their corners, which are one particle (8-connected), and a diagonal line one pixel wide
+		ip.setRoi(10, 10, 3, 3);
+		ip.fill();
+		ip.setRoi(13, 13, 3, 3);
+		ip.fill();
+		for(int i = 0; i < 8; i++) {
+			ip.set(20 + i, 10 + i, 255);
+		}
+
+		//two squares side by side (one particle) and two squares one pixel apart (two particles)
+		ip.setRoi(32, 10, 4, 4);
+		ip.fill();
+		ip.setRoi(36, 11, 4, 4);
+		ip.fill();
+		ip.setRoi(32, 18, 4, 4);
+		ip.fill();
+		ip.setRoi(37, 18, 4, 4);
+		ip.fill();
+
+		//a ring, a ring with a particle in its hole, and rings nested twice with a particle at the center
+		ring(ip, 45, 8, 15, 15, 3);
+		ring(ip, 64, 8, 21, 21, 3);
+		ip.setRoi(73, 17, 3, 3);
+		ip.fill();
+		ring(ip, 90, 5, 31, 31, 2);
+		ring(ip, 96, 11, 19, 19, 2);
+		ip.setRoi(104, 19, 3, 3);
+		ip.fill();
+
+		//a square with three holes, one of them a single pixel, and a hole that only touches the outside diagonally
+		ip.setRoi(125, 8, 20, 14);
+		ip.fill();
+		ip.setValue(0);
+		ip.setRoi(127, 10, 4, 4);
+		ip.fill();
+		ip.setRoi(133, 12, 5, 6);
+		ip.fill();
+		ip.set(141, 11, 0);
+		ip.setValue(255);
+		ring(ip, 10, 30, 9, 9, 1);
+		ip.set(10, 30, 0);
+		ip.set(11, 31, 0);
+
+		//a U and a C, whose insides are open to the outside, and a spiral whose inside is a long corridor to the outside
+		ring(ip, 25, 30, 12, 12, 2);
+		ip.setValue(0);
+		ip.setRoi(29, 30, 4, 2);
+		ip.fill();
+		ip.setValue(255);
+		ring(ip, 42, 30, 12, 12, 2);
+		ip.setValue(0);
+		ip.setRoi(52, 34, 2, 4);
+		ip.fill();
+		ip.setValue(255);
+		int[][] spiral = {{60, 30, 20, 1}, {79, 30, 1, 20}, {60, 49, 20, 1}, {60, 33, 1, 17}, {60, 33, 17, 1}, {76, 33, 1, 14},
+				{63, 46, 14, 1}, {63, 36, 1, 11}, {63, 36, 11, 1}};
+		for(int[] wall : spiral) {
+			ip.setRoi(wall[0], wall[1], wall[2], wall[3]);
+			ip.fill();
+		}
+
+		//an ellipse and a filled circle with a ring around it, separated by one pixel
+		ip.resetRoi();
+		ip.fillOval(85, 45, 25, 13);
+		ip.fillOval(120, 40, 9, 9);
+		ring(ip, 118, 38, 13, 13, 1);
+
+		//particles on the four edges, which are left out, and particles one pixel from the edges, which are kept
+		ip.setRoi(0, 60, 3, 3);
+		ip.fill();
+		ip.setRoi(50, 0, 3, 3);
+		ip.fill();
+		ip.setRoi(157, 70, 3, 3);
+		ip.fill();
+		ip.setRoi(60, 117, 3, 3);
+		ip.fill();
+		ip.setRoi(1, 70, 3, 3);
+		ip.fill();
+		ip.setRoi(70, 1, 3, 3);
+		ip.fill();
+		ip.setRoi(156, 80, 3, 3);
+		ip.fill();
+		ip.setRoi(80, 116, 3, 3);
+		ip.fill();
+		//a ring on the edge around a particle that does not touch it
+		ring(ip, 140, 100, 20, 20, 2);
+		ip.setRoi(148, 108, 3, 3);
+		ip.fill();
+
+		//single pixels, and particles of 9 and 10 pixels around the minimum size, one of them a ring whose hole makes it bigger
+		ip.set(20, 70, 255);
+		ip.set(22, 72, 255);
+		ip.setRoi(30, 70, 3, 3);
+		ip.fill();
+		ip.setRoi(40, 70, 5, 2);
+		ip.fill();
+		ring(ip, 50, 70, 3, 4, 1);
+		ring(ip, 60, 70, 4, 4, 1);
+
+		ip.resetRoi();
+		return ip;
+	}
+
+	/**
+	 * Draws the outline of a rectangle
+	 */
+	private static void ring(ByteProcessor ip, int x, int y, int width, int height, int thickness) {
+		ip.setRoi(x, y, width, thickness);
+		ip.fill();
+		ip.setRoi(x, y + height - thickness, width, thickness);
+		ip.fill();
+		ip.setRoi(x, y, thickness, height);
+		ip.fill();
+		ip.setRoi(x + width - thickness, y, thickness, height);
+		ip.fill();
+	}
+
+	/**
+	 * @return A frame whose pixels are particle pixels with the given probability
+	 */
+	private static ByteProcessor noise(int width, int height, double density, Random random) {
+		byte[] pixels = new byte[width*height];
+		for(int i = 0; i < pixels.length; i++) {
+			if(random.nextDouble() < density) {
+				pixels[i] = (byte) 255;
+			}
+		}
+		return new ByteProcessor(width, height, pixels, null);
+	}
+}
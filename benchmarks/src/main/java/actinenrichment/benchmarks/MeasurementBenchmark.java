@@ -0,0 +1,62 @@
+package actinenrichment.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * determineIntensities: the roi and background box sums of every tracked roi, for all the frames of the movie.
+ * boxDim decides between summing the boxes pixel by pixel and the summed-area tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementBenchmark {
+
+	@Param({"512", "1024"})
+	int size;
+
+	@Param({"100", "1000"})
+	int filaments;
+
+	@Param({"20"})
+	int frames;
+
+	@Param({"20", "60"})
+	double boxDim;
+
+	private Workload workload;
+
+	@Setup
+	public void setup() throws IOException {
+		workload = new Workload(size, filaments, frames, boxDim, false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		workload.close();
+	}
+
+	@Benchmark
+	public void determineIntensities(Blackhole blackhole) {
+		for(int frame = 1; frame < workload.roisInEachFrame.length; frame++) {
+			blackhole.consume(workload.measure(frame));
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package actinenrichment.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Writes realistic actin/ABP movie pairs with a known ground truth, as 16-bit TIFF stacks the plugin can process like lab data.
+ * Every filament lives in its own cell of a grid (so filaments never touch and their number per frame is known): its center diffuses,
+ * it turns a little and grows from frame to frame until it fills its cell. The filaments are drawn as blurred lines (the point spread
+ * function), the ABP channel has the actin signal times the enrichment ratio, both channels photobleach at their own rate and get
+ * shot noise and read noise on a constant offset.
+ * The ABP/actin ratio the plugin should measure in a frame is the enrichment ratio times the ratio of the two bleaching factors.
+ * Only the filament positions are kept in memory, the frames are drawn while the TIFF files are written, so movies larger than the
+ * heap can be generated.
+ */
+final class MovieGenerator {
+
+	private static final double SIGMA = 1.0; //pixels, width of the point spread function
+	private static final double ACTIN_OFFSET = 200;
+	private static final double ABP_OFFSET = 100;
+
+	final int size;
+	final int frames;
+	final int filaments;
+	final double enrichment; //ABP signal over actin signal on the filaments, before bleaching
+	final double actinBleach; //fraction of the actin signal lost per frame
+	final double ABPBleach;
+	final double brightness; //peak actin signal of a filament in the first frame, over the offset
+	final double noise; //standard deviation of the read noise
+	final long seed;
+
+	//the filaments of every frame: center, angle and length, [frame][filament] with frame 0 unused like the slices of the plugin
+	final double[][] x;
+	final double[][] y;
+	final double[][] angle;
+	final double[][] length;
+
+	/**
+	 * Makes the trajectories of the filaments of a movie, the options are the ones of main() except output and name
+	 * @param options The macro style options string, e.g. "size=1024 frames=100 filaments=400"
+	 */
+	MovieGenerator(String options) {
+		size = Integer.parseInt(Macro.getValue(options, "size", "1024"));
+		frames = Integer.parseInt(Macro.getValue(options, "frames", "50"));
+		filaments = Integer.parseInt(Macro.getValue(options, "filaments", "200"));
+		enrichment = Double.parseDouble(Macro.getValue(options, "enrichment", "0.6"));
+		actinBleach = Double.parseDouble(Macro.getValue(options, "actin_bleach", "0.002"));
+		ABPBleach = Double.parseDouble(Macro.getValue(options, "abp_bleach", "0.005"));
+		brightness = Double.parseDouble(Macro.getValue(options, "brightness", "800"));
+		noise = Double.parseDouble(Macro.getValue(options, "noise", "10"));
+		seed = Long.parseLong(Macro.getValue(options, "seed", "42"));
+		double diffusion = Double.parseDouble(Macro.getValue(options, "diffusion", "0.5")); //pixels per frame
+		double growth = Double.parseDouble(Macro.getValue(options, "growth", "0.3")); //pixels per frame
+		int margin = Integer.parseInt(Macro.getValue(options, "margin", "40")); //keeps the background boxes in the frame
+
+		x = new double[frames + 1][filaments];
+		y = new double[frames + 1][filaments];
+		angle = new double[frames + 1][filaments];
+		length = new double[frames + 1][filaments];
+
+		Random random = new Random(seed);
+		int grid = (int) Math.ceil(Math.sqrt(filaments));
+		double cell = (double) (size - 2*margin)/grid;
+		double maxLength = Math.max(4, cell - 8);
+		for(int f = 0; f < filaments; f++) {
+			double centerX = margin + (f % grid + 0.5)*cell;
+			double centerY = margin + (f/grid + 0.5)*cell;
+			x[1][f] = centerX;
+			y[1][f] = centerY;
+			angle[1][f] = random.nextDouble()*Math.PI;
+			length[1][f] = maxLength*(0.3 + 0.2*random.nextDouble());
+
+			for(int frame = 2; frame <= frames; frame++) {
+				//the filament may only diffuse as far as its current length allows without leaving its cell
+				double reach = Math.max(0, (cell - length[frame - 1][f])/2 - 3);
+				x[frame][f] = clamp(x[frame - 1][f] + diffusion*random.nextGaussian(), centerX - reach, centerX + reach);
+				y[frame][f] = clamp(y[frame - 1][f] + diffusion*random.nextGaussian(), centerY - reach, centerY + reach);
+				angle[frame][f] = angle[frame - 1][f] + 0.05*random.nextGaussian();
+				length[frame][f] = Math.min(maxLength, length[frame - 1][f] + growth*(1 + 0.5*random.nextGaussian()));
+			}
+		}
+	}
+
+	/**
+	 * @param frame The frame, starting at 1
+	 * @return The ABP/actin ratio of the background corrected intensities on the filaments in this frame
+	 */
+	double ratio(int frame) {
+		return enrichment*bleaching(ABPBleach, frame)/bleaching(actinBleach, frame);
+	}
+
+	/**
+	 * Writes name_actin.tif, name_ABP.tif and name_truth.csv (the filaments of every frame and the ratio to be measured)
+	 * @param folder The folder the files are written to
+	 * @param name The start of the file names
+	 * @return The actin stack, the ABP stack is next to it
+	 * @throws IOException If the files cannot be written
+	 */
+	File write(File folder, String name) throws IOException {
+		File actin = new File(folder, name + "_actin.tif");
+		File ABP = new File(folder, name + "_ABP.tif");
+		if(!new FileSaver(new ImagePlus(name + "_actin", new Channel(false))).saveAsTiffStack(actin.getAbsolutePath())
+				|| !new FileSaver(new ImagePlus(name + "_ABP", new Channel(true))).saveAsTiffStack(ABP.getAbsolutePath())) {
+			throw new IOException("Could not write the movie to " + folder.getAbsolutePath());
+		}
+
+		BufferedWriter truth = new BufferedWriter(new FileWriter(new File(folder, name + "_truth.csv")), 1 << 16);
+		try {
+			truth.write("Frame,Filament,X,Y,Angle,Length,Ratio\n");
+			for(int frame = 1; frame <= frames; frame++) {
+				for(int f = 0; f < filaments; f++) {
+					truth.write(frame + "," + f + "," + x[frame][f] + "," + y[frame][f] + "," + angle[frame][f] + "," + length[frame][f]
+							+ "," + ratio(frame) + "\n");
+				}
+			}
+		} finally {
+			truth.close();
+		}
+		return actin;
+	}
+
+	/**
+	 * Draws the filaments of a frame: lines of unit height blurred by the point spread function, scaled to a peak of 1
+	 */
+	private FloatProcessor signal(int frame) {
+		FloatProcessor signal = new FloatProcessor(size, size);
+		signal.setValue(Math.sqrt(2*Math.PI)*SIGMA);
+		signal.setLineWidth(1);
+		for(int f = 0; f < filaments; f++) {
+			double dx = Math.cos(angle[frame][f])*length[frame][f]/2;
+			double dy = Math.sin(angle[frame][f])*length[frame][f]/2;
+			signal.drawLine((int) Math.round(x[frame][f] - dx), (int) Math.round(y[frame][f] - dy),
+					(int) Math.round(x[frame][f] + dx), (int) Math.round(y[frame][f] + dy));
+		}
+		new GaussianBlur().blurGaussian(signal, SIGMA, SIGMA, 0.002);
+		return signal;
+	}
+
+	private static double bleaching(double rate, int frame) {
+		return Math.pow(1 - rate, frame - 1);
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * One channel of the movie, its frames are drawn when the TIFF writer asks for them. The noise of a frame only depends on
+	 * the seed, the channel and the frame, so a frame is the same whenever it is drawn.
+	 */
+	private final class Channel extends VirtualStack {
+
+		private final boolean ABP;
+
+		Channel(boolean ABP) {
+			super(size, size, null, null);
+			this.ABP = ABP;
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int frame) {
+			float[] signal = (float[]) signal(frame).getPixels();
+			double offset = ABP ? ABP_OFFSET : ACTIN_OFFSET;
+			double peak = ABP ? brightness*enrichment*bleaching(ABPBleach, frame) : brightness*bleaching(actinBleach, frame);
+
+			Random random = new Random(seed*31 + 2*frame + (ABP ? 1 : 0));
+			short[] pixels = new short[size*size];
+			for(int i = 0; i < pixels.length; i++) {
+				double mean = offset + peak*signal[i];
+				//shot noise (photons) and read noise (camera), both gaussian at these intensities
+				double value = mean + Math.sqrt(mean)*random.nextGaussian() + noise*random.nextGaussian();
+				pixels[i] = (short) Math.round(clamp(value, 0, 65535));
+			}
+			return new ShortProcessor(size, size, pixels, null);
+		}
+
+		@Override
+		public Object getPixels(int frame) {
+			return getProcessor(frame).getPixels();
+		}
+
+		@Override
+		public int getSize() {
+			return frames;
+		}
+
+		@Override
+		public int size() {
+			return frames;
+		}
+
+		@Override
+		public int getBitDepth() {
+			return 16;
+		}
+
+		@Override
+		public String getSliceLabel(int frame) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes one movie pair, e.g. java -cp benchmarks.jar actinenrichment.benchmarks.MovieGenerator output=/data name=synthetic frames=200
+	 * Options: output (folder), name, size, frames, filaments, enrichment, actin_bleach, abp_bleach (fraction lost per frame),
+	 * brightness, noise, diffusion, growth (pixels per frame), margin (pixels) and seed
+	 */
+	public static void main(String[] args) throws IOException {
+		String options = String.join(" ", args);
+		File output = new File(Macro.getValue(options, "output", "."));
+		output.mkdirs();
+		File actin = new MovieGenerator(options).write(output, Macro.getValue(options, "name", "synthetic"));
+		System.out.println("Wrote " + actin.getAbsolutePath());
+	}
+}
@@ -0,0 +1,65 @@
+package actinenrichment.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * writeResults: the filament statistics, TrackingDataOutput.csv, sorted_output.csv and the RoiSet of the accepted rois.
+ * The tracks are rebuilt before every call (not measured), writeResults adds the measurements to them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+	@Param({"512", "1024"})
+	int size;
+
+	@Param({"100", "1000"})
+	int filaments;
+
+	@Param({"20", "100"})
+	int frames;
+
+	@Param({"40"})
+	double boxDim;
+
+	private Workload workload;
+
+	@Setup
+	public void setup() throws IOException {
+		workload = new Workload(size, filaments, frames, boxDim, false);
+	}
+
+	@Setup(Level.Invocation)
+	public void newTracks() {
+		workload.plugin.track();
+	}
+
+	@TearDown
+	public void tearDown() {
+		workload.close();
+	}
+
+	@Benchmark
+	public void writeResults() {
+		workload.plugin.writeResults(workload.roisInEachFrame, workload.intensityData);
+	}
+}
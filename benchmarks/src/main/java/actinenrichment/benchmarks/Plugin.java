@@ -0,0 +1,210 @@
+package actinenrichment.benchmarks;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Gives the benchmarks access to the stages of one ActinEnrichment_ instance. The plugin classes are in the default package,
+ * which classes in a named package cannot refer to (and JMH does not accept benchmarks in the default package), so the methods
+ * and fields are looked up by reflection once and called through the cached handles. That adds a few nanoseconds to stages
+ * that take micro to milliseconds.
+ */
+final class Plugin {
+
+	private static final Class<?> PLUGIN = load("ActinEnrichment_");
+	private static final Class<?> ROI_STORE = load("RoiStore");
+	private static final Class<?> TRACK_TABLE = load("TrackTable");
+	private static final Class<?> LABELER = load("ComponentLabeler");
+
+	private static final Method READ_OPTIONS = method(PLUGIN, "readOptions", String.class);
+	private static final Method ADD_PARTICLES = method(PLUGIN, "addParticles", ArrayList.class, int.class, int.class);
+	private static final Method HASH_ROIS = method(PLUGIN, "hashROIs", ROI_STORE);
+	private static final Method DETERMINE_INTENSITIES = method(PLUGIN, "determineIntensities", int[].class, int.class,
+			ImageProcessor.class, ImageProcessor.class, ImageProcessor.class);
+	private static final Method WRITE_RESULTS = method(PLUGIN, "writeResults", int[][].class,
+			Array.newInstance(DETERMINE_INTENSITIES.getReturnType(), 0).getClass(), ROI_STORE);
+	private static final Method LABEL = method(LABELER, "label", ByteProcessor.class, int.class, double.class, java.util.List.class);
+	private static final Method RUN = method(PLUGIN, "run", ImageProcessor.class);
+	private static final Method ROI_COUNT = method(ROI_STORE, "size");
+
+	private static final Field ROI_STORE_FIELD = field(PLUGIN, "roiStore");
+	private static final Field TRACKS = field(PLUGIN, "tracks");
+	private static final Field INCLUDED_FILAMENTS = field(PLUGIN, "numIncludedFilaments");
+	private static final Field TOTAL_ABP = field(PLUGIN, "totCountValABP");
+	private static final Field HEADLESS = field(PLUGIN, "headless");
+
+	private final Object plugin;
+	private final Object labeler;
+
+	/**
+	 * @param options The options of the plugin, in the format of its parameter files and macro options
+	 */
+	Plugin(String options) {
+		plugin = create(PLUGIN);
+		labeler = create(LABELER);
+		invoke(READ_OPTIONS, plugin, options);
+	}
+
+	/**
+	 * Processes the movie of the options from start to end without dialogs, like a batch job
+	 */
+	void run() {
+		try {
+			HEADLESS.setBoolean(plugin, true);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		invoke(RUN, plugin, (Object) null);
+	}
+
+	/**
+	 * @return The number of rois in the roi store, i.e. found in all the frames with their background box in the frame
+	 */
+	int roiCount() {
+		try {
+			Object store = ROI_STORE_FIELD.get(plugin);
+			return store == null ? 0 : (Integer) invoke(ROI_COUNT, store);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Empties the roi store of the plugin
+	 * @param frames The number of frames of the movie (the store holds frames + 1, like the plugin)
+	 */
+	void newRoiStore(int frames) {
+		try {
+			Constructor<?> constructor = ROI_STORE.getDeclaredConstructor(int.class);
+			constructor.setAccessible(true);
+			ROI_STORE_FIELD.set(plugin, constructor.newInstance(frames + 1));
+			TOTAL_ABP.set(plugin, new double[frames + 1]);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Labels the particles of a binary frame and adds the ones whose background box fits in the frame to the roi store
+	 * @return The count masks of the frame
+	 */
+	ShortProcessor labelFrame(ByteProcessor binary, int slice, double minSize) {
+		ArrayList<Object> particles = new ArrayList<Object>();
+		ShortProcessor mask = (ShortProcessor) invoke(LABEL, labeler, binary, slice, minSize, particles);
+		invoke(ADD_PARTICLES, plugin, particles, binary.getWidth(), binary.getHeight());
+		return mask;
+	}
+
+	/**
+	 * Tracks the rois of the store from the first frame, with new tracks
+	 * @return The tracked order of the rois of every frame
+	 */
+	int[][] track() {
+		try {
+			TRACKS.set(plugin, create(TRACK_TABLE));
+			INCLUDED_FILAMENTS.setInt(plugin, 0);
+			return (int[][]) invoke(HASH_ROIS, plugin, ROI_STORE_FIELD.get(plugin));
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Measures the tracked rois of one frame
+	 * @return The measurements of the frame (an array of ActinEnrichment_.Intensities)
+	 */
+	Object measure(int[] frame, int frameCount, ImageProcessor actin, ImageProcessor ABP, ImageProcessor mask) {
+		return invoke(DETERMINE_INTENSITIES, plugin, frame, frameCount, actin, ABP, mask);
+	}
+
+	/**
+	 * @param frames The number of frames
+	 * @return An empty table of measurements for all the frames of a movie
+	 */
+	static Object newIntensityData(int frames) {
+		return Array.newInstance(DETERMINE_INTENSITIES.getReturnType(), frames);
+	}
+
+	/**
+	 * Writes the csv files and the RoiSet of the movie
+	 * @param roisInEachFrame The tracked order of the rois of every frame
+	 * @param intensityData The measurements of every frame
+	 */
+	void writeResults(int[][] roisInEachFrame, Object intensityData) {
+		try {
+			invoke(WRITE_RESULTS, plugin, roisInEachFrame, intensityData, ROI_STORE_FIELD.get(plugin));
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return A new object of the plugin class, made by its constructor with the parameters of the arguments
+	 */
+	static Object create(Class<?> type, Object... args) {
+		for(Constructor<?> constructor : type.getDeclaredConstructors()) {
+			if(constructor.getParameterCount() == args.length) {
+				try {
+					constructor.setAccessible(true);
+					return constructor.newInstance(args);
+				} catch (ReflectiveOperationException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		throw new IllegalStateException("The plugin has no constructor of " + type.getName() + " with " + args.length
+				+ " parameters, the benchmarks need updating");
+	}
+
+	static Class<?> load(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("The plugin classes are not on the class path: " + name, e);
+		}
+	}
+
+	static Method method(Class<?> type, String name, Class<?>... parameters) {
+		try {
+			Method method = type.getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("The plugin has no method " + name + ", the benchmarks need updating", e);
+		}
+	}
+
+	static Field field(Class<?> type, String name) {
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("The plugin has no field " + name + ", the benchmarks need updating", e);
+		}
+	}
+}
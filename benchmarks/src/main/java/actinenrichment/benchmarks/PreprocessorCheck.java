@@ -0,0 +1,146 @@
+package actinenrichment.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import ij.Macro;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.plugin.filter.RankFilters;
+import ij.plugin.filter.UnsharpMask;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Checks that the fused Preprocessor of the plugin gives the same pixels as the ImageJ filters it replaces, run one after the
+ * other like Segmenter does for the frames that are not 16-bit: Unsharp Mask (radius 1, weight 0.6), Median (radius 2) and
+ * Subtract Background (rolling ball 50, light background off, smoothing on).
+ * The frames are random 16-bit frames, both uniform noise over the whole range and dim filaments on a background with
+ * bright outliers, in sizes that are odd, not a multiple of the band of rows the Preprocessor filters together, or smaller
+ * than one band, where the kernels reach the edges of the frame from both sides.
+ * Every pixel must be the same; the differences are reported and the exit code is 1 if a frame differs. To be run after a
+ * change of the Preprocessor or of the ImageJ version, whose filters it reproduces.
+ * <p>
+ * java -cp benchmarks.jar actinenrichment.benchmarks.PreprocessorCheck seed=1 frames=3
+ * <p>
+ * "frames" is the number of frames of every size and kind.
+ */
+public final class PreprocessorCheck {
+
+	//width x height; 32 rows is the band of the Preprocessor, the rolling ball of ImageJ needs frames at least 5 pixels wide
+	private static final int[][] SIZES = {{5, 1}, {5, 3}, {7, 2}, {16, 16}, {17, 40}, {40, 17}, {31, 32}, {32, 33}, {33, 31},
+			{65, 33}, {64, 64}, {100, 257}, {300, 200}, {513, 97}};
+
+	private static final Class<?> PREPROCESSOR = Plugin.load("Preprocessor");
+	private static final Class<?> RUN_REPORT = Plugin.load("RunReport");
+	private static final Method FILTER = Plugin.method(PREPROCESSOR, "filter", ShortProcessor.class, RUN_REPORT);
+
+	public static void main(String[] args) {
+		String options = String.join(" ", args);
+		Random random = new Random(Long.parseLong(Macro.getValue(options, "seed", "1")));
+		int frames = Integer.parseInt(Macro.getValue(options, "frames", "3"));
+
+		Object preprocessor = Plugin.create(PREPROCESSOR);
+		Object report = Plugin.create(RUN_REPORT, "PreprocessorCheck", false);
+
+		int checked = 0;
+		int failed = 0;
+		for(int[] size : SIZES) {
+			for(int kind = 0; kind < 2; kind++) {
+				for(int n = 0; n < frames; n++) {
+					ShortProcessor frame = kind == 0 ? noise(size[0], size[1], random) : filaments(size[0], size[1], random);
+					short[] expected = (short[]) filters(frame).getPixels();
+					//the same Preprocessor for all the sizes, like a thread of the plugin that gets movies of different sizes
+					short[] actual = (short[]) ((ShortProcessor) Plugin.invoke(FILTER, preprocessor, frame, report)).getPixels();
+
+					int differences = 0;
+					int maxDifference = 0;
+					int first = -1;
+					for(int i = 0; i < expected.length; i++) {
+						int difference = Math.abs((expected[i] & 0xffff) - (actual[i] & 0xffff));
+						if(difference > 0) {
+							if(first < 0) {
+								first = i;
+							}
+							differences++;
+							maxDifference = Math.max(maxDifference, difference);
+						}
+					}
+					checked++;
+					if(differences > 0) {
+						failed++;
+						System.out.println(size[0] + "x" + size[1] + (kind == 0 ? " noise" : " filaments") + " frame " + (n + 1) + ": "
+								+ differences + " pixels differ, by up to " + maxDifference + ", the first at x=" + first%size[0]
+								+ " y=" + first/size[0]);
+					}
+				}
+			}
+		}
+
+		System.out.println(checked + " frames checked, " + failed + " differ");
+		if(failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The frame filtered by the ImageJ filters one after the other
+	 */
+	private static ImageProcessor filters(ShortProcessor frame) {
+		ImageProcessor ip = frame.duplicate();
+		FloatProcessor fp = ip.toFloat(0, null);
+		fp.snapshot();
+		new UnsharpMask().sharpenFloat(fp, 1, 0.6f);
+		ip.setPixels(0, fp);
+		new RankFilters().rank(ip, 2, RankFilters.MEDIAN);
+		new BackgroundSubtracter().rollingBallBackground(ip, 50, false, false, false, true, true);
+		return ip;
+	}
+
+	/**
+	 * @return A frame of uniform noise over the whole 16-bit range, which reaches the clamping of the unsharp mask
+	 */
+	private static ShortProcessor noise(int width, int height, Random random) {
+		short[] pixels = new short[width*height];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) random.nextInt(65536);
+		}
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * @return A frame like the movies: a sloped background with noise, a few bright straight filaments and some saturated pixels
+	 */
+	private static ShortProcessor filaments(int width, int height, Random random) {
+		float[] pixels = new float[width*height];
+		double slopeX = random.nextDouble()*2;
+		double slopeY = random.nextDouble()*2;
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				pixels[y*width + x] = (float) (500 + slopeX*x + slopeY*y + random.nextGaussian()*30);
+			}
+		}
+
+		int filaments = 1 + width*height/2000;
+		for(int f = 0; f < filaments; f++) {
+			double x = random.nextDouble()*width;
+			double y = random.nextDouble()*height;
+			double angle = random.nextDouble()*Math.PI;
+			double brightness = 500 + random.nextDouble()*3000;
+			int length = 5 + random.nextInt(40);
+			for(int step = 0; step < length; step++) {
+				int px = (int) (x + step*Math.cos(angle));
+				int py = (int) (y + step*Math.sin(angle));
+				if(px >= 0 && px < width && py >= 0 && py < height) {
+					pixels[py*width + px] += brightness;
+				}
+			}
+		}
+
+		short[] shorts = new short[pixels.length];
+		for(int i = 0; i < pixels.length; i++) {
+			shorts[i] = (short) (random.nextInt(500) == 0 ? 65535 : Math.max(0, Math.min(65535, Math.round(pixels[i]))));
+		}
+		return new ShortProcessor(width, height, shorts, null);
+	}
+}
@@ -0,0 +1,167 @@
+package actinenrichment.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import ij.Macro;
+
+/**
+ * Runs the whole plugin (segmentation, tracking, measurements and outputs) headlessly on generated movies of increasing size,
+ * to find out how the run time and memory scale with the number of filaments per frame and the length of the movie.
+ * For every combination of the "filaments" and "frames" lists a movie is generated with MovieGenerator and processed, and one line
+ * is reported: frames/s, rois/s, peak heap, the filaments tracked out of the ones generated, and the measured ABP/actin ratios
+ * against the ground truth of the generator.
+ * The generation is not timed. The results are also appended to scaling.csv in the output folder, so runs on different machines
+ * or builds can be compared.
+ * <p>
+ * java -cp benchmarks.jar actinenrichment.benchmarks.ScalingHarness filaments=100,400,1600 frames=50,200 size=1024 output=/scratch
+ * <p>
+ * The other options are given to the generator (see MovieGenerator.main) and to the plugin (see ActinEnrichment_.readOptions),
+ * "keep=YES" keeps the movies and results of every run.
+ */
+public final class ScalingHarness {
+
+	//parameters of the plugin that suit the generated movies, the options of the command line come first and override them
+	private static final String PLUGIN_DEFAULTS = " box=40 tracking_distance=10 consecutive=5 max_area=1000 min_size=20";
+
+	private static final String HEADER = "Size,Filaments,Frames,Seconds,Frames/s,Rois/s,PeakHeapMB,FilamentsTracked,"
+			+ "MeanRatio,TrueRatio,MeanAbsRelativeError";
+
+	public static void main(String[] args) throws IOException {
+		String options = String.join(" ", args);
+		String[] filamentCounts = Macro.getValue(options, "filaments", "100,400,1600").split(",");
+		String[] frameCounts = Macro.getValue(options, "frames", "20,100").split(",");
+		File output = new File(Macro.getValue(options, "output", System.getProperty("java.io.tmpdir")));
+		boolean keep = Macro.getValue(options, "keep", "NO").equalsIgnoreCase("YES");
+		output.mkdirs();
+
+		File report = new File(output, "scaling.csv");
+		boolean newReport = !report.isFile();
+		BufferedWriter csv = new BufferedWriter(new FileWriter(report, true));
+		try {
+			if(newReport) {
+				csv.write(HEADER + "\n");
+			}
+			System.out.println(HEADER);
+			for(String frames : frameCounts) {
+				for(String filaments : filamentCounts) {
+					//the lists are replaced by the values of this run, Macro.getValue takes the first occurrence of a key
+					String runOptions = "filaments=" + filaments.trim() + " frames=" + frames.trim() + " " + options;
+					String line = run(runOptions, output, keep);
+					System.out.println(line);
+					csv.write(line + "\n");
+					csv.flush();
+				}
+			}
+		} finally {
+			csv.close();
+		}
+	}
+
+	/**
+	 * Generates one movie, processes it and checks the results
+	 * @return The line of the report
+	 */
+	private static String run(String options, File output, boolean keep) throws IOException {
+		MovieGenerator generator = new MovieGenerator(options);
+		File folder = Files.createTempDirectory(output.toPath(), "scaling-" + generator.filaments + "x" + generator.frames + "-").toFile();
+		File actin = generator.write(folder, "synthetic");
+		File ABP = new File(folder, "synthetic_ABP.tif");
+
+		Plugin plugin = new Plugin("actin=[" + actin.getAbsolutePath() + "] abp=[" + ABP.getAbsolutePath() + "] output=[" + folder.getAbsolutePath() + "] "
+				+ options + PLUGIN_DEFAULTS);
+
+		//the peak of every heap pool since the reset, their sum is an upper bound of the peak heap of the run
+		System.gc();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		long start = System.nanoTime();
+		plugin.run();
+		double seconds = (System.nanoTime() - start)/1e9;
+		long peakHeap = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		Accuracy accuracy = new Accuracy(new File(folder, actin.getName() + "_sorted_output.csv"), generator);
+
+		if(!keep) {
+			File[] files = folder.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					file.delete();
+				}
+			}
+			folder.delete();
+		}
+
+		return String.format(Locale.ROOT, "%d,%d,%d,%.3f,%.2f,%.1f,%d,%d/%d,%.5f,%.5f,%.5f", generator.size, generator.filaments, generator.frames,
+				seconds, generator.frames/seconds, plugin.roiCount()/seconds, peakHeap >> 20, accuracy.filaments, generator.filaments,
+				accuracy.meanRatio, accuracy.meanTrueRatio, accuracy.meanError);
+	}
+
+	/**
+	 * The ABP/actin ratios of sorted_output.csv compared with the ratio the generator put in each frame
+	 */
+	private static final class Accuracy {
+
+		int filaments; //the tracked filaments with at least one measurement
+		double meanRatio;
+		double meanTrueRatio;
+		double meanError; //mean of |measured - true|/true over all the measurements
+
+		Accuracy(File sortedOutput, MovieGenerator generator) throws IOException {
+			if(!sortedOutput.isFile()) {
+				throw new IOException("The plugin did not write " + sortedOutput.getAbsolutePath());
+			}
+
+			Set<String> tracked = new HashSet<String>();
+			int measurements = 0;
+			BufferedReader reader = new BufferedReader(new FileReader(sortedOutput), 1 << 16);
+			try {
+				reader.readLine(); //header
+				String line;
+				while((line = reader.readLine()) != null) {
+					//FrameNo,Filament,Area,NormalizedAvgActin,NormalizedAvgABP,ABP/Act,...; missing filaments have an area of 0
+					String[] cells = line.split(",", 7);
+					if(cells.length < 6 || Double.parseDouble(cells[2]) == 0) {
+						continue;
+					}
+					int frame = Integer.parseInt(cells[0]);
+					double ratio = Double.parseDouble(cells[5]);
+					double trueRatio = generator.ratio(frame);
+					tracked.add(cells[1]);
+					meanRatio += ratio;
+					meanTrueRatio += trueRatio;
+					meanError += Math.abs(ratio - trueRatio)/trueRatio;
+					measurements++;
+				}
+			} finally {
+				reader.close();
+			}
+
+			filaments = tracked.size();
+			if(measurements > 0) {
+				meanRatio /= measurements;
+				meanTrueRatio /= measurements;
+				meanError /= measurements;
+			}
+		}
+	}
+}
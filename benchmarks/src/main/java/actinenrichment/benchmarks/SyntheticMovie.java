@@ -0,0 +1,94 @@
+package actinenrichment.benchmarks;
+
+import java.util.Random;
+
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A synthetic two-channel movie with the binary masks of its filaments, so the stages after the segmentation can be measured
+ * without real data. Every filament is a short thick segment in its own cell of a jittered grid, it drifts, turns and changes
+ * length a little from frame to frame without leaving its cell, so the number of filaments per frame is the one asked for
+ * (as long as the cells are larger than the filaments). The actin channel is the filaments on a noisy background, the ABP channel
+ * the same filaments scaled by an enrichment ratio with its own background and noise.
+ * The movie only depends on its parameters and the seed, so every fork of a benchmark measures the same movie.
+ */
+final class SyntheticMovie {
+
+	static final double ENRICHMENT = 0.6; //ABP signal over actin signal on the filaments
+
+	final int size;
+	final int frames;
+	final int filaments;
+	final ShortProcessor[] actin; //frames 1 to frames, index 0 is unused like the slices of the plugin
+	final ShortProcessor[] ABP;
+	final ByteProcessor[] binary;
+
+	/**
+	 * @param size The width and height of the frames
+	 * @param frames The number of frames
+	 * @param filaments The number of filaments in every frame
+	 * @param seed The seed of the random positions and noise
+	 */
+	SyntheticMovie(int size, int frames, int filaments, long seed) {
+		this.size = size;
+		this.frames = frames;
+		this.filaments = filaments;
+		actin = new ShortProcessor[frames + 1];
+		ABP = new ShortProcessor[frames + 1];
+		binary = new ByteProcessor[frames + 1];
+
+		Random random = new Random(seed);
+		int grid = (int) Math.ceil(Math.sqrt(filaments));
+		double cell = (double) size/grid;
+		double maxLength = Math.max(2, Math.min(20, cell - 6));
+
+		//the state of every filament: center, angle and length
+		double[] x = new double[filaments];
+		double[] y = new double[filaments];
+		double[] angle = new double[filaments];
+		double[] length = new double[filaments];
+		for(int f = 0; f < filaments; f++) {
+			x[f] = (f % grid + 0.5)*cell;
+			y[f] = (f/grid + 0.5)*cell;
+			angle[f] = random.nextDouble()*Math.PI;
+			length[f] = maxLength*(0.5 + 0.5*random.nextDouble());
+		}
+
+		for(int frame = 1; frame <= frames; frame++) {
+			ByteProcessor mask = new ByteProcessor(size, size);
+			mask.setColor(255);
+			mask.setLineWidth(3);
+			for(int f = 0; f < filaments; f++) {
+				//a random walk that stays within the cell of the filament
+				double centerX = (f % grid + 0.5)*cell;
+				double centerY = (f/grid + 0.5)*cell;
+				double reach = Math.max(0, cell/2 - maxLength/2 - 3);
+				x[f] = clamp(x[f] + random.nextGaussian(), centerX - reach, centerX + reach);
+				y[f] = clamp(y[f] + random.nextGaussian(), centerY - reach, centerY + reach);
+				angle[f] += 0.1*random.nextGaussian();
+				length[f] = clamp(length[f] + 0.5*random.nextGaussian(), maxLength/2, maxLength);
+
+				double dx = Math.cos(angle[f])*length[f]/2;
+				double dy = Math.sin(angle[f])*length[f]/2;
+				mask.drawLine((int) Math.round(x[f] - dx), (int) Math.round(y[f] - dy), (int) Math.round(x[f] + dx), (int) Math.round(y[f] + dy));
+			}
+			binary[frame] = mask;
+
+			byte[] inside = (byte[]) mask.getPixels();
+			short[] actinPixels = new short[size*size];
+			short[] ABPPixels = new short[size*size];
+			for(int i = 0; i < inside.length; i++) {
+				double signal = inside[i] != 0 ? 800 : 0;
+				actinPixels[i] = (short) clamp(200 + signal + 20*random.nextGaussian(), 0, 65535);
+				ABPPixels[i] = (short) clamp(100 + ENRICHMENT*signal + 20*random.nextGaussian(), 0, 65535);
+			}
+			actin[frame] = new ShortProcessor(size, size, actinPixels, null);
+			ABP[frame] = new ShortProcessor(size, size, ABPPixels, null);
+		}
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
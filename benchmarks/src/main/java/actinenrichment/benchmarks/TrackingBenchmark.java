@@ -0,0 +1,62 @@
+package actinenrichment.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * hashROIs: links the rois of every frame to the filaments of the previous frames, nearest first (FilamentTracker)
+ * or with the minimum cost linking (OptimalLinker). Every call starts with new tracks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackingBenchmark {
+
+	@Param({"512", "1024"})
+	int size;
+
+	@Param({"100", "1000"})
+	int filaments;
+
+	@Param({"20", "100"})
+	int frames;
+
+	@Param({"40"})
+	double boxDim;
+
+	@Param({"false", "true"})
+	boolean optimalLinking;
+
+	private Workload workload;
+
+	@Setup
+	public void setup() throws IOException {
+		workload = new Workload(size, filaments, frames, boxDim, optimalLinking);
+	}
+
+	@TearDown
+	public void tearDown() {
+		workload.close();
+	}
+
+	@Benchmark
+	public int[][] hashROIs() {
+		return workload.plugin.track();
+	}
+}
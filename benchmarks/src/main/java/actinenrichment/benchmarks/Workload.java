@@ -0,0 +1,80 @@
+package actinenrichment.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+
+import ij.process.ShortProcessor;
+
+/**
+ * A synthetic movie taken through the plugin up to the stage a benchmark measures: the frames are labelled into the roi store,
+ * tracked and measured once, so each benchmark can repeat its own stage on realistic inputs.
+ * The results are written to a temporary folder, deleted by close().
+ */
+final class Workload {
+
+	static final double MIN_SIZE = 5; //pixels
+	static final long SEED = 42;
+
+	final SyntheticMovie movie;
+	final Plugin plugin;
+	final ShortProcessor[] masks;
+	final int[][] roisInEachFrame;
+	final Object intensityData;
+	private final File output;
+
+	/**
+	 * @param size The width and height of the frames
+	 * @param filaments The number of filaments per frame
+	 * @param frames The number of frames
+	 * @param boxDim The size of the background boxes
+	 * @param optimalLinking True to track with the minimum cost linking instead of nearest first
+	 * @throws IOException If the temporary folder cannot be created
+	 */
+	Workload(int size, int filaments, int frames, double boxDim, boolean optimalLinking) throws IOException {
+		movie = new SyntheticMovie(size, frames, filaments, SEED);
+		output = Files.createTempDirectory("actin-enrichment-benchmark").toFile();
+
+		//filaments move less than a pixel per frame on average and are at least a cell apart, they are kept from the third frame on
+		plugin = new Plugin("actin=[" + new File(output, "synthetic_actin.tif").getAbsolutePath() + "] output=[" + output.getAbsolutePath() + "]"
+				+ " box=" + boxDim + " tracking_distance=5 consecutive=3 max_area=1000 min_size=" + MIN_SIZE
+				+ " optimal_linking=" + (optimalLinking ? "YES" : "NO"));
+
+		plugin.newRoiStore(frames);
+		masks = new ShortProcessor[frames + 1];
+		for(int frame = 1; frame <= frames; frame++) {
+			masks[frame] = plugin.labelFrame(movie.binary[frame], frame, MIN_SIZE);
+		}
+
+		roisInEachFrame = plugin.track();
+		intensityData = Plugin.newIntensityData(roisInEachFrame.length);
+		for(int frame = 0; frame < roisInEachFrame.length; frame++) {
+			Array.set(intensityData, frame, measure(frame));
+		}
+	}
+
+	/**
+	 * Measures the tracked rois of one frame
+	 * @return The measurements of the frame, null for frame 0
+	 */
+	Object measure(int frame) {
+		if(frame == 0) {
+			return null;
+		}
+		return plugin.measure(roisInEachFrame[frame], frame, movie.actin[frame], movie.ABP[frame], masks[frame]);
+	}
+
+	/**
+	 * Deletes the results written to the temporary folder
+	 */
+	void close() {
+		File[] files = output.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		output.delete();
+	}
+}